@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.aws;
+
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.KinesisClientLibException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Checkpoints the highest sequence number whose batch, and every batch before it, has been flushed by the store.
+// Records after the checkpoint are processed again after failover, so processing is at-least-once.
+// A batch flushed with failed writes is passed once the writer has given up on them, failed items are kept
+// in the dead letter store, or the write-ahead log when that is unavailable, rather than redelivered.
+public class CheckpointCoordinator {
+
+    private final static Logger log = LoggerFactory.getLogger(CheckpointCoordinator.class);
+
+    private final long intervalMillis;
+    private final Queue<Batch> batches = new LinkedList();
+    private String flushedSequenceNumber;
+    private String checkpointedSequenceNumber;
+    private long lastCheckpoint;
+
+    public CheckpointCoordinator(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        this.lastCheckpoint = System.currentTimeMillis();
+    }
+
+    public void track(String sequenceNumber, CompletableFuture<?> flushed) {
+        batches.add(new Batch(sequenceNumber, flushed));
+    }
+
+    public String getFlushedSequenceNumber() {
+        while (!batches.isEmpty() && batches.peek().flushed.isDone()) {
+            Batch batch = batches.poll();
+            if (batch.flushed.isCompletedExceptionally()) {
+                // Holding the checkpoint here would stop every later checkpoint of the lease
+                log.error("Batch up to " + batch.sequenceNumber + " flushed with dead-lettered writes");
+            }
+            flushedSequenceNumber = batch.sequenceNumber;
+        }
+        return flushedSequenceNumber;
+    }
+
+    public int getPendingBatches() {
+        return batches.size();
+    }
+
+    // Checkpoints once the interval has passed, returns false if the lease has been lost
+    public boolean checkpoint(IRecordProcessorCheckpointer checkpointer) {
+        if (System.currentTimeMillis() - lastCheckpoint < intervalMillis) {
+            return true;
+        }
+        return checkpointNow(checkpointer);
+    }
+
+    public boolean checkpointNow(IRecordProcessorCheckpointer checkpointer) {
+        String sequenceNumber = getFlushedSequenceNumber();
+        if (sequenceNumber == null || sequenceNumber.equals(checkpointedSequenceNumber)) {
+            return true;
+        }
+        try {
+            checkpointer.checkpoint(sequenceNumber);
+            checkpointedSequenceNumber = sequenceNumber;
+            lastCheckpoint = System.currentTimeMillis();
+            log.info("Checkpoint " + sequenceNumber);
+            return true;
+        } catch (ShutdownException ex) {
+            log.warn("Lease lost, skipping checkpoint " + sequenceNumber);
+            return false;
+        } catch (KinesisClientLibException ex) {
+            // Throttled or temporarily unavailable, try again on the next batch
+            log.warn("Checkpoint failed: " + sequenceNumber, ex);
+            return true;
+        }
+    }
+
+    private static class Batch {
+
+        private final String sequenceNumber;
+        private final CompletableFuture<?> flushed;
+
+        private Batch(String sequenceNumber, CompletableFuture<?> flushed) {
+            this.sequenceNumber = sequenceNumber;
+            this.flushed = flushed;
+        }
+
+    }
+
+}
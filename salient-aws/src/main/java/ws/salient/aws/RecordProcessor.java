@@ -17,24 +17,37 @@
 package ws.salient.aws;
 
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessor;
+import com.amazonaws.services.kinesis.clientlibrary.lib.worker.ShutdownReason;
 import com.amazonaws.services.kinesis.clientlibrary.types.InitializationInput;
 import com.amazonaws.services.kinesis.clientlibrary.types.ProcessRecordsInput;
 import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
 import com.amazonaws.services.kinesis.model.Record;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Guice;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ws.salient.aws.databind.AmazonModule;
+import ws.salient.aws.dynamodb.DataKeyCache;
 import ws.salient.aws.dynamodb.DynamoDBProfiles;
 import ws.salient.aws.dynamodb.DynamoDBStore;
+import ws.salient.aws.dynamodb.EventCompactor;
+import ws.salient.aws.dynamodb.WriteAheadLog;
+import ws.salient.aws.s3.AmazonS3BlobStore;
 import ws.salient.aws.s3.AmazonS3Repository;
+import ws.salient.knowledge.KieBaseCache;
 import ws.salient.model.Command;
 import ws.salient.session.Sessions;
 
@@ -43,6 +56,14 @@ public class RecordProcessor implements IRecordProcessor {
     private final static Logger log = LoggerFactory.getLogger(RecordProcessor.class);
 
     private Sessions sessions;
+    private DynamoDBStore store;
+    private AmazonS3Repository repository;
+    private DynamoDBProfiles profiles;
+    private ScheduledExecutorService eviction;
+    private ExecutorService commandExecutor;
+    private ExecutorService warmupExecutor;
+    private CheckpointCoordinator checkpoints;
+    private String shardId;
     private final ObjectMapper json;
     
     public RecordProcessor() {
@@ -52,22 +73,173 @@ public class RecordProcessor implements IRecordProcessor {
     @Override
     public void initialize(InitializationInput input) {
         AmazonClientProvider provider = new AmazonClientProvider();
-        sessions = new Sessions(new AmazonS3Repository(provider.getAmazonS3()),
-                new DynamoDBProfiles(provider.getDynamoDB(), provider.getAWSKMS(), json),
-                new DynamoDBStore(provider.getDynamoDB(), provider.getAWSKMS(), json, Executors.newSingleThreadExecutor()),
+        shardId = input.getShardId();
+        DataKeyCache keys = new DataKeyCache(provider.getAWSKMS())
+                .withMaximumSize(Integer.getInteger("salient.kms.cacheSize", 1000))
+                .withTimeToLive(Duration.parse(System.getProperty("salient.kms.cacheTtl", "PT5M")))
+                .withSweeper(Executors.newSingleThreadScheduledExecutor());
+        int keyPoolSize = Integer.getInteger("salient.kms.keyPool", 0);
+        if (keyPoolSize > 0) {
+            keys.withKeyPool(keyPoolSize, Executors.newSingleThreadExecutor());
+        }
+        store = new DynamoDBStore(provider.getDynamoDB(), provider.getAWSKMS(), json, Executors.newSingleThreadExecutor())
+                .withReplayExecutor(Executors.newFixedThreadPool(4))
+                .withDecodeExecutor(Executors.newFixedThreadPool(Integer.getInteger("salient.replay.decodeThreads", Runtime.getRuntime().availableProcessors())),
+                        Integer.getInteger("salient.replay.decodeBatch", 16))
+                .withLoadExecutor(Executors.newFixedThreadPool(Integer.getInteger("salient.session.loadThreads", 16)))
+                .withWriterLanes(Integer.getInteger("salient.store.writers", 4))
+                .withTransformation(System.getProperty("salient.store.transformation", "AES/GCM/NoPadding"))
+                .withDataKeyCache(keys)
+                .withFlushPolicy(Integer.getInteger("salient.store.flushSize", 25), Long.getLong("salient.store.flushMillis", 50L));
+        store.registerMetrics(input.getShardId());
+        String sessionBucket = System.getProperty("salient.session.bucket");
+        AmazonS3BlobStore sessionBlobs = null;
+        if (sessionBucket != null) {
+            sessionBlobs = new AmazonS3BlobStore(provider.getAmazonS3(), sessionBucket, "sessions");
+            store.withBlobStore(sessionBlobs);
+        }
+        store.withRetryPolicy(Integer.getInteger("salient.store.maxAttempts", 10),
+                sessionBucket != null ? new AmazonS3BlobStore(provider.getAmazonS3(), sessionBucket, "dead-letters") : null);
+        String walDirectory = System.getProperty("salient.store.wal");
+        if (walDirectory != null) {
+            store.withWriteAheadLog(new WriteAheadLog(Paths.get(walDirectory, input.getShardId()),
+                    Integer.getInteger("salient.store.walSegmentSize", 64 * 1024 * 1024),
+                    Long.getLong("salient.store.walSyncMillis", 10L)));
+            // Recovered items must be stored before records are processed, otherwise the lease is given up
+            try {
+                store.flush().get(60, TimeUnit.SECONDS);
+            } catch (Exception ex) {
+                throw new RuntimeException("Write-ahead log not recovered: " + input.getShardId(), ex);
+            }
+        }
+        String eventRetention = System.getProperty("salient.events.retention");
+        if (eventRetention != null) {
+            EventCompactor compactor = new EventCompactor(provider.getDynamoDB(), Executors.newSingleThreadScheduledExecutor())
+                    .withRetention(Duration.parse(eventRetention))
+                    .withMaxDeletesPerSecond(Integer.getInteger("salient.events.deleteRate", 100));
+            if (sessionBucket != null && Boolean.getBoolean("salient.events.archive")) {
+                compactor.withArchive(new AmazonS3BlobStore(provider.getAmazonS3(), sessionBucket, "events"));
+            }
+            if (sessionBlobs != null) {
+                compactor.withBlobStore(sessionBlobs);
+            }
+            // The shard session index is the compactor's list of sessions to compact
+            store.withShardId(input.getShardId());
+            store.withCompactor(compactor.start(input.getShardId(), Duration.ofMinutes(5)));
+        }
+        checkpoints = new CheckpointCoordinator(Long.getLong("salient.checkpoint.intervalMillis", 60000L));
+        int warmupSessions = Integer.getInteger("salient.warmup.sessions", 0);
+        if (warmupSessions > 0) {
+            store.withShardId(input.getShardId());
+        }
+        String artifactCache = System.getProperty("salient.artifacts.cache");
+        repository = new AmazonS3Repository(provider.getAmazonS3(), artifactCache != null ? Paths.get(artifactCache) : null)
+                .withBuildTimeout(Duration.parse(System.getProperty("salient.knowledge.buildTimeout", "PT5M")))
+                .withInPlaceUpgrade(Boolean.getBoolean("salient.knowledge.inPlaceUpgrade"))
+                .withPrecompiled(Boolean.getBoolean("salient.knowledge.precompiled"));
+        String kieBaseCacheDirectory = System.getProperty("salient.knowledge.cache");
+        if (kieBaseCacheDirectory != null) {
+            repository.withKieBaseCache(new KieBaseCache(Paths.get(kieBaseCacheDirectory)));
+        }
+        profiles = new DynamoDBProfiles(provider.getDynamoDB(), provider.getAWSKMS(), json).withDataKeyCache(keys);
+        repository.withRetained(profiles::getKnowledgeBaseIds);
+        String profileRefresh = System.getProperty("salient.profiles.refresh");
+        if (profileRefresh != null) {
+            // Account settings are loaded up front and refreshed off the command path
+            profiles.withRefresh(Duration.parse(profileRefresh), Executors.newSingleThreadExecutor());
+            profiles.loadAll();
+        }
+        commandExecutor = Executors.newSingleThreadExecutor();
+        sessions = new Sessions(repository,
+                profiles,
+                store,
                 Guice.createInjector(provider),
-                Executors.newSingleThreadExecutor(),
+                commandExecutor,
                 ForkJoinPool.commonPool());
+        String evictAfter = System.getProperty("salient.knowledge.evictAfter");
+        if (evictAfter != null) {
+            // Dispose knowledge base versions no resident session or alias uses any more
+            Duration gracePeriod = Duration.parse(evictAfter);
+            eviction = Executors.newSingleThreadScheduledExecutor();
+            eviction.scheduleWithFixedDelay(() -> {
+                try {
+                    sessions.evictKnowledgeBases(gracePeriod);
+                } catch (RuntimeException ex) {
+                    log.error("Knowledge base eviction failed", ex);
+                }
+            }, gracePeriod.toMillis(), gracePeriod.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (Boolean.getBoolean("salient.knowledge.prewarm")) {
+            CompletableFuture prewarm = sessions.prewarm();
+            if (Boolean.getBoolean("salient.knowledge.prewarmWait")) {
+                // Hold the lease until knowledge bases are compiled, so the first batch does not wait on them
+                try {
+                    prewarm.get(Duration.parse(System.getProperty("salient.knowledge.buildTimeout", "PT5M")).toMillis(), TimeUnit.MILLISECONDS);
+                } catch (Exception ex) {
+                    log.warn("Prewarm did not complete", ex);
+                }
+            }
+        }
+        if (warmupSessions > 0) {
+            // Preload the sessions recently active on this shard while live records start flowing
+            Duration activeWithin = Duration.parse(System.getProperty("salient.warmup.activeWithin", "PT1H"));
+            warmupExecutor = Executors.newFixedThreadPool(Integer.getInteger("salient.warmup.threads", 4));
+            CompletableFuture.supplyAsync(() -> {
+                return store.getActiveSessions(activeWithin, warmupSessions);
+            }).thenCompose((commands) -> {
+                return sessions.warmup(commands, warmupExecutor);
+            }).exceptionally((ex) -> {
+                log.error("Warmup failed", ex);
+                return null;
+            }).thenRun(() -> {
+                // Warmup runs once per lease, its threads are not needed afterwards
+                warmupExecutor.shutdown();
+            });
+        }
     }
 
     @Override
     public void processRecords(ProcessRecordsInput input) {
-        accept(input.getRecords());
+        List<Record> records = input.getRecords();
+        accept(records);
+        if (!records.isEmpty()) {
+            // Commands are applied and their writes queued, the batch is durable once the store has flushed them
+            checkpoints.track(records.get(records.size() - 1).getSequenceNumber(), store.flush());
+        }
+        checkpoints.checkpoint(input.getCheckpointer());
     }
 
     @Override
     public void shutdown(ShutdownInput input) {
+        if (input.getShutdownReason() == ShutdownReason.TERMINATE) {
+            try {
+                store.flush().get(60, TimeUnit.SECONDS);
+                // Shard has ended, checkpoint so child shards can be processed
+                input.getCheckpointer().checkpoint();
+            } catch (Exception ex) {
+                log.error("Failed to checkpoint shard end", ex);
+            }
+        }
+        if (eviction != null) {
+            eviction.shutdown();
+        }
+        if (warmupExecutor != null) {
+            warmupExecutor.shutdownNow();
+        }
+        // Commands still queued are applied and their writes queued before the store shuts down
+        commandExecutor.shutdown();
+        try {
+            if (!commandExecutor.awaitTermination(60, TimeUnit.SECONDS)) {
+                log.error("Commands not completed on shutdown");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        // Shuts down the store's replay, load, decode and blob pools, its writer lanes and timers,
+        // the compactor scheduler, the write-ahead log and the data key cache
         sessions.shutdown();
+        repository.shutdown();
+        profiles.shutdown();
     }
     
     public void accept(List<Record> records) {
@@ -75,7 +247,12 @@ public class RecordProcessor implements IRecordProcessor {
             List<Command> commands = records.stream()
                     .map((record) -> {
                         try {
-                            return json.readValue(record.getData().array(), Command.class);
+                            Command command = json.readValue(record.getData().array(), Command.class);
+                            String sequenceNumber = record.getSequenceNumber();
+                            if (record instanceof UserRecord && ((UserRecord) record).isAggregated()) {
+                                sequenceNumber = sequenceNumber + "." + ((UserRecord) record).getSubSequenceNumber();
+                            }
+                            return command.withSequenceNumber(shardId, sequenceNumber);
                         } catch (IOException ex) {
                             throw new RuntimeException(ex);
                         }
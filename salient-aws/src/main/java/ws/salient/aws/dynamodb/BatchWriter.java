@@ -0,0 +1,494 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.aws.dynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.salient.aws.s3.BlobStore;
+
+// Write-behind queue for DynamoDB puts. Writes are grouped into BatchWriteItem requests once enough
+// are queued or the flush interval passes. Unprocessed items are retried up to maxAttempts flushes,
+// then failed and kept in the dead letter store when one is set.
+public class BatchWriter implements BatchWriterMXBean {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchWriter.class);
+
+    // BatchWriteItem service limits
+    private static final int MAX_BATCH_ITEMS = 25;
+    private static final long MAX_BATCH_BYTES = 16 * 1024 * 1024;
+
+    private static final int MAX_RETRIES = 8;
+    private static final long BASE_BACKOFF_MILLIS = 25;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private static final List<String> THROTTLING_ERRORS = Arrays.asList(
+            "ProvisionedThroughputExceededException", "ThrottlingException", "RequestLimitExceeded");
+
+    private final DynamoDB dynamodb;
+    private final ExecutorService flushExecutor;
+    private final ScheduledExecutorService timer;
+    private final Queue<Write> writes = new ConcurrentLinkedQueue();
+    // Writes to resend ahead of newer ones, after giving up on a request
+    private final ConcurrentLinkedDeque<Write> retries = new ConcurrentLinkedDeque();
+    private final Set<CompletableFuture<Void>> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile int flushSize = MAX_BATCH_ITEMS;
+    private volatile long flushMillis = 50;
+    private int maxAttempts = 10;
+    private BlobStore deadLetters;
+    private ObjectName name;
+
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong itemsWritten = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalFlushMillis = new AtomicLong();
+    private volatile long lastFlushMillis;
+    private volatile long maxFlushMillis;
+
+    public BatchWriter(DynamoDB dynamodb, ExecutorService flushExecutor) {
+        this.dynamodb = dynamodb;
+        this.flushExecutor = flushExecutor;
+        timer = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "salient-batch-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (flushExecutor != null) {
+            tick();
+        }
+    }
+
+    public BatchWriter withFlushPolicy(int flushSize, long flushMillis) {
+        this.flushSize = flushSize;
+        this.flushMillis = flushMillis;
+        return this;
+    }
+
+    // Writes still unprocessed after maxAttempts flushes are failed
+    public BatchWriter withMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    // Failed items are kept as JSON under tableName/, for inspection and manual replay
+    public BatchWriter withDeadLetters(BlobStore deadLetters) {
+        this.deadLetters = deadLetters;
+        return this;
+    }
+
+    public void register(String shardId, int lane) {
+        try {
+            name = new ObjectName("ws.salient:type=BatchWriter,shard=" + ObjectName.quote(shardId) + ",lane=" + lane);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException ex) {
+            log.error("Failed to register writer metrics", ex);
+            name = null;
+        }
+    }
+
+    public CompletableFuture<Void> write(Write write) {
+        pending.add(write.future);
+        write.future.whenComplete((result, ex) -> {
+            pending.remove(write.future);
+        });
+        writes.offer(write);
+        if (queueDepth.incrementAndGet() >= flushSize) {
+            scheduleFlush();
+        }
+        return write.future;
+    }
+
+    // Completes once every write queued so far is stored or has failed
+    public CompletableFuture<Void> flush() {
+        CompletableFuture[] futures = pending.toArray(new CompletableFuture[0]);
+        scheduleFlush();
+        return CompletableFuture.allOf(futures);
+    }
+
+    public void shutdown() {
+        try {
+            flush().get(60, TimeUnit.SECONDS);
+        } catch (Exception ex) {
+            log.error("Writes not flushed on shutdown: " + (queueDepth.get() + retries.size()), ex);
+        }
+        timer.shutdownNow();
+        if (flushExecutor != null) {
+            flushExecutor.shutdown();
+        }
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException ex) {
+                log.error("Failed to unregister writer metrics", ex);
+            }
+        }
+    }
+
+    private void tick() {
+        if (queueDepth.get() > 0 || !retries.isEmpty()) {
+            scheduleFlush();
+        }
+        if (!timer.isShutdown()) {
+            timer.schedule(this::tick, flushMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushExecutor != null && flushScheduled.compareAndSet(false, true)) {
+            flushExecutor.execute(this::drain);
+        }
+    }
+
+    protected synchronized void drain() {
+        flushScheduled.set(false);
+        List<Write> drained = new ArrayList(retries);
+        retries.clear();
+        Write write = writes.poll();
+        while (write != null) {
+            queueDepth.decrementAndGet();
+            drained.add(write);
+            write = writes.poll();
+        }
+        if (drained.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+
+        // Later writes of the same key supersede queued ones
+        Map<Object, Write> latest = new LinkedHashMap();
+        for (Write next : drained) {
+            Object key = next.replaceKey != null ? next.replaceKey : next;
+            Write previous = latest.remove(key);
+            if (previous != null) {
+                next.supersede(previous);
+            }
+            latest.put(key, next);
+        }
+
+        List<Write> chunk = new ArrayList();
+        long chunkBytes = 0;
+        for (Write next : latest.values()) {
+            if (!next.prepare()) {
+                requeue(Arrays.asList(next));
+                continue;
+            }
+            long size = estimateSize(next.item);
+            if (chunk.size() == MAX_BATCH_ITEMS || (!chunk.isEmpty() && chunkBytes + size > MAX_BATCH_BYTES)) {
+                writeChunk(chunk);
+                chunk = new ArrayList();
+                chunkBytes = 0;
+            }
+            chunk.add(next);
+            chunkBytes += size;
+        }
+        if (!chunk.isEmpty()) {
+            writeChunk(chunk);
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        flushCount.incrementAndGet();
+        totalFlushMillis.addAndGet(elapsed);
+        lastFlushMillis = elapsed;
+        maxFlushMillis = Math.max(maxFlushMillis, elapsed);
+        log.info("Stored items: " + latest.size() + " in " + elapsed + "ms");
+    }
+
+    protected void writeChunk(List<Write> chunk) {
+        Map<String, TableWriteItems> tables = new LinkedHashMap();
+        chunk.forEach((write) -> {
+            tables.computeIfAbsent(write.tableName, TableWriteItems::new).addItemToPut(write.item);
+        });
+        try {
+            BatchWriteItemOutcome outcome = dynamodb.batchWriteItem(tables.values().toArray(new TableWriteItems[tables.size()]));
+            Map<String, List<WriteRequest>> unprocessed = outcome.getUnprocessedItems();
+            int attempt = 0;
+            while (!unprocessed.isEmpty() && attempt < MAX_RETRIES) {
+                retryCount.incrementAndGet();
+                backoff(attempt++);
+                unprocessed = dynamodb.batchWriteItemUnprocessed(unprocessed).getUnprocessedItems();
+            }
+            if (unprocessed.isEmpty()) {
+                itemsWritten.addAndGet(chunk.size());
+                chunk.forEach(Write::stored);
+            } else {
+                // Puts are idempotent, so the whole chunk is resent on the next flush
+                log.warn("Unprocessed items after retries: " + count(unprocessed.values()));
+                requeue(chunk);
+            }
+        } catch (AmazonServiceException ex) {
+            if (ex.getErrorType() == AmazonServiceException.ErrorType.Client && !THROTTLING_ERRORS.contains(ex.getErrorCode())) {
+                log.error("Rejected items: " + chunk.size(), ex);
+                chunk.forEach((write) -> {
+                    deadLetter(write, ex);
+                });
+            } else {
+                log.warn("Failed to store items, retrying: " + chunk.size(), ex);
+                requeue(chunk);
+            }
+        } catch (AmazonClientException ex) {
+            log.warn("Failed to store items, retrying: " + chunk.size(), ex);
+            requeue(chunk);
+        }
+    }
+
+    private void requeue(List<Write> chunk) {
+        retryCount.incrementAndGet();
+        for (int index = chunk.size() - 1; index >= 0; index--) {
+            Write write = chunk.get(index);
+            if (++write.attempts >= maxAttempts) {
+                deadLetter(write, new RuntimeException("Item not stored after " + write.attempts + " attempts"));
+            } else {
+                retries.addFirst(write);
+            }
+        }
+    }
+
+    protected void deadLetter(Write write, Throwable ex) {
+        failures.incrementAndGet();
+        log.error("Failed to store item for " + write.tableName, ex);
+        if (deadLetters != null) {
+            String key = write.tableName + "/" + UUID.randomUUID();
+            try {
+                deadLetters.put(key, write.item.toJSON().getBytes(StandardCharsets.UTF_8));
+                write.deadLettered = true;
+                log.info("Dead letter stored: " + key);
+            } catch (RuntimeException putEx) {
+                log.error("Failed to store dead letter for " + write.tableName, putEx);
+            }
+        }
+        write.fail(ex);
+    }
+
+    private void backoff(int attempt) {
+        long millis = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << attempt);
+        try {
+            Thread.sleep(millis / 2 + ThreadLocalRandom.current().nextLong(millis / 2 + 1));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int count(Collection<List<WriteRequest>> requests) {
+        return requests.stream().mapToInt(List::size).sum();
+    }
+
+    protected static long estimateSize(Item item) {
+        long size = 0;
+        for (Map.Entry<String, Object> attribute : item.attributes()) {
+            size += attribute.getKey().length() + estimateSize(attribute.getValue());
+        }
+        return size;
+    }
+
+    private static long estimateSize(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        } else if (value instanceof ByteBuffer) {
+            return ((ByteBuffer) value).remaining();
+        } else if (value instanceof String) {
+            return ((String) value).getBytes(StandardCharsets.UTF_8).length;
+        } else if (value instanceof Map) {
+            long size = 3;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += 1 + String.valueOf(entry.getKey()).length() + estimateSize(entry.getValue());
+            }
+            return size;
+        } else if (value instanceof Collection) {
+            long size = 3;
+            for (Object element : (Collection) value) {
+                size += 1 + estimateSize(element);
+            }
+            return size;
+        }
+        return 21;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    @Override
+    public int getRetryDepth() {
+        return retries.size();
+    }
+
+    @Override
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    @Override
+    public long getItemsWritten() {
+        return itemsWritten.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retryCount.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public long getLastFlushMillis() {
+        return lastFlushMillis;
+    }
+
+    @Override
+    public long getMaxFlushMillis() {
+        return maxFlushMillis;
+    }
+
+    @Override
+    public double getAverageFlushMillis() {
+        long flushes = flushCount.get();
+        return flushes == 0 ? 0 : (double) totalFlushMillis.get() / flushes;
+    }
+
+    public static class Write {
+
+        private final String tableName;
+        private Item item;
+        private Object replaceKey;
+        private UnaryOperator<Item> prepare;
+        private Runnable stored;
+        private int attempts;
+        private volatile boolean deadLettered;
+        private final CompletableFuture<Void> future = new CompletableFuture();
+
+        public Write(String tableName, Item item) {
+            this.tableName = tableName;
+            this.item = item;
+        }
+
+        // Queued writes with an equal key are replaced by this one
+        public Write withReplaceKey(Object replaceKey) {
+            this.replaceKey = replaceKey;
+            return this;
+        }
+
+        // Applied once on the writer thread before the item is sent
+        public Write withPrepare(UnaryOperator<Item> prepare) {
+            this.prepare = prepare;
+            return this;
+        }
+
+        // Called once the item is confirmed written
+        public Write withStored(Runnable stored) {
+            this.stored = stored;
+            return this;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public Item getItem() {
+            return item;
+        }
+
+        public CompletableFuture<Void> getFuture() {
+            return future;
+        }
+
+        // A failed item kept in the dead letter store, it is no longer needed elsewhere to be recovered
+        public boolean isDeadLettered() {
+            return deadLettered;
+        }
+
+        private boolean prepare() {
+            if (prepare != null) {
+                try {
+                    item = prepare.apply(item);
+                    prepare = null;
+                } catch (RuntimeException ex) {
+                    log.error("Failed to prepare item for " + tableName, ex);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void stored() {
+            try {
+                if (stored != null) {
+                    stored.run();
+                }
+            } catch (RuntimeException ex) {
+                log.error("Stored callback failed for " + tableName, ex);
+            }
+            future.complete(null);
+        }
+
+        private void fail(Throwable ex) {
+            future.completeExceptionally(ex);
+        }
+
+        private void supersede(Write previous) {
+            future.whenComplete((result, ex) -> {
+                if (ex != null) {
+                    previous.deadLettered = deadLettered;
+                    previous.fail(ex);
+                } else {
+                    previous.future.complete(null);
+                }
+            });
+        }
+
+    }
+
+}
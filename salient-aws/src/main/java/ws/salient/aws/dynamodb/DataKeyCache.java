@@ -0,0 +1,295 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.aws.dynamodb;
+
+import com.amazonaws.services.kms.AWSKMS;
+import com.amazonaws.services.kms.model.DataKeySpec;
+import com.amazonaws.services.kms.model.DecryptRequest;
+import com.amazonaws.services.kms.model.DecryptResult;
+import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
+import com.amazonaws.services.kms.model.GenerateDataKeyResult;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Plaintext of KMS ciphertext blobs, keyed by blob and encryption context.
+// Entries expire after timeToLive and the least recently used are evicted beyond maximumSize,
+// plaintext is zeroed when an entry leaves the cache. Expired entries are swept every timeToLive.
+public class DataKeyCache {
+
+    private static final Logger log = LoggerFactory.getLogger(DataKeyCache.class);
+
+    private final AWSKMS kms;
+    private final LinkedHashMap<CacheKey, CacheEntry> entries;
+    private final ConcurrentMap<String, BlockingQueue<GenerateDataKeyResult>> pools;
+    private final ConcurrentMap<String, AtomicBoolean> refilling;
+    private int maximumSize = 1000;
+    private long timeToLive = Duration.ofMinutes(5).toMillis();
+    private String keyId = "alias/salient";
+    private int poolSize;
+    private ExecutorService poolExecutor;
+    private ScheduledExecutorService sweeper;
+
+    public DataKeyCache(AWSKMS kms) {
+        this.kms = kms;
+        this.entries = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+                if (size() > maximumSize) {
+                    eldest.getValue().destroy();
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.pools = new ConcurrentHashMap();
+        this.refilling = new ConcurrentHashMap();
+    }
+
+    public DataKeyCache withMaximumSize(int maximumSize) {
+        this.maximumSize = maximumSize;
+        return this;
+    }
+
+    public DataKeyCache withTimeToLive(Duration timeToLive) {
+        this.timeToLive = timeToLive.toMillis();
+        return this;
+    }
+
+    public DataKeyCache withKeyId(String keyId) {
+        this.keyId = keyId;
+        return this;
+    }
+
+    // Keeps poolSize data keys per account generated ahead of use, refilled on the executor
+    public DataKeyCache withKeyPool(int poolSize, ExecutorService poolExecutor) {
+        this.poolSize = poolSize;
+        this.poolExecutor = poolExecutor;
+        return this;
+    }
+
+    // Removes and zeroes expired entries every timeToLive, even if they are never looked up again
+    public DataKeyCache withSweeper(ScheduledExecutorService sweeper) {
+        this.sweeper = sweeper;
+        sweeper.scheduleWithFixedDelay(() -> {
+            try {
+                sweep();
+            } catch (RuntimeException ex) {
+                log.warn("Failed to sweep data key cache", ex);
+            }
+        }, timeToLive, timeToLive, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    public boolean isPooled() {
+        return poolSize > 0;
+    }
+
+    // Returns a copy of the plaintext, the caller may zero it once used
+    public byte[] decrypt(ByteBuffer ciphertext, Map<String, String> context) {
+        byte[] blob = new byte[ciphertext.remaining()];
+        ciphertext.duplicate().get(blob);
+        CacheKey key = new CacheKey(blob, context);
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            CacheEntry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expires > now) {
+                    return entry.plaintext.clone();
+                }
+                entries.remove(key);
+                entry.destroy();
+            }
+        }
+        DecryptResult result = kms.decrypt(new DecryptRequest()
+                .withEncryptionContext(context)
+                .withCiphertextBlob(ByteBuffer.wrap(blob)));
+        byte[] plaintext = toByteArray(result.getPlaintext());
+        synchronized (entries) {
+            CacheEntry previous = entries.put(key, new CacheEntry(plaintext, now + timeToLive));
+            if (previous != null) {
+                previous.destroy();
+            }
+        }
+        return plaintext.clone();
+    }
+
+    // Pooled keys are generated before their session exists, so they are bound to the account only
+    public GenerateDataKeyResult generate(String accountId, Map<String, String> context) {
+        if (isPooled()) {
+            BlockingQueue<GenerateDataKeyResult> pool = pools.computeIfAbsent(accountId, (id) -> new LinkedBlockingQueue());
+            GenerateDataKeyResult dataKey = pool.poll();
+            refill(accountId, pool);
+            if (dataKey != null) {
+                return dataKey;
+            }
+            return generateDataKey(getPoolContext(accountId));
+        }
+        return generateDataKey(context);
+    }
+
+    public Map<String, String> getPoolContext(String accountId) {
+        return Collections.singletonMap("accountId", accountId);
+    }
+
+    private void refill(String accountId, BlockingQueue<GenerateDataKeyResult> pool) {
+        AtomicBoolean running = refilling.computeIfAbsent(accountId, (id) -> new AtomicBoolean());
+        if (pool.size() < poolSize && running.compareAndSet(false, true)) {
+            poolExecutor.execute(() -> {
+                try {
+                    while (pool.size() < poolSize) {
+                        pool.add(generateDataKey(getPoolContext(accountId)));
+                    }
+                } catch (RuntimeException ex) {
+                    log.warn("Failed to refill key pool for " + accountId, ex);
+                } finally {
+                    running.set(false);
+                }
+            });
+        }
+    }
+
+    private GenerateDataKeyResult generateDataKey(Map<String, String> context) {
+        return kms.generateDataKey(new GenerateDataKeyRequest()
+                .withKeySpec(DataKeySpec.AES_128)
+                .withEncryptionContext(context)
+                .withKeyId(keyId));
+    }
+
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        int swept = 0;
+        synchronized (entries) {
+            Iterator<CacheEntry> cached = entries.values().iterator();
+            while (cached.hasNext()) {
+                CacheEntry entry = cached.next();
+                if (entry.expires <= now) {
+                    entry.destroy();
+                    cached.remove();
+                    swept++;
+                }
+            }
+        }
+        if (swept > 0) {
+            log.info("Swept expired data keys: " + swept);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.values().forEach(CacheEntry::destroy);
+            entries.clear();
+        }
+        pools.values().forEach((pool) -> {
+            Iterator<GenerateDataKeyResult> dataKeys = pool.iterator();
+            while (dataKeys.hasNext()) {
+                zero(dataKeys.next().getPlaintext());
+                dataKeys.remove();
+            }
+        });
+    }
+
+    public void shutdown() {
+        if (poolExecutor != null) {
+            poolExecutor.shutdown();
+        }
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        clear();
+    }
+
+    public static byte[] toByteArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        zero(buffer);
+        return bytes;
+    }
+
+    public static void zero(ByteBuffer buffer) {
+        if (buffer != null && buffer.hasArray()) {
+            Arrays.fill(buffer.array(), (byte) 0);
+        }
+    }
+
+    private static class CacheEntry {
+
+        private final byte[] plaintext;
+        private final long expires;
+
+        public CacheEntry(byte[] plaintext, long expires) {
+            this.plaintext = plaintext;
+            this.expires = expires;
+        }
+
+        public void destroy() {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+
+    }
+
+    private static class CacheKey {
+
+        private final byte[] ciphertext;
+        private final Map<String, String> context;
+        private final int hashCode;
+
+        public CacheKey(byte[] ciphertext, Map<String, String> context) {
+            this.ciphertext = ciphertext;
+            this.context = new TreeMap(context);
+            this.hashCode = 31 * Arrays.hashCode(ciphertext) + this.context.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            return Arrays.equals(ciphertext, other.ciphertext) && Objects.equals(context, other.context);
+        }
+
+    }
+
+}
@@ -17,28 +17,39 @@
 package ws.salient.aws.dynamodb;
 
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.ItemCollection;
 import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
+import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
 import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
 import com.amazonaws.services.kms.AWSKMS;
-import com.amazonaws.services.kms.model.DecryptRequest;
-import com.amazonaws.services.kms.model.DecryptResult;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 import org.eclipse.aether.repository.RemoteRepository;
 import org.eclipse.aether.repository.RepositoryPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ws.salient.account.Profiles;
+import ws.salient.account.ResolvedProfile;
 import ws.salient.model.Profile;
 import ws.salient.model.Repository;
 import ws.salient.model.Settings;
@@ -50,58 +61,172 @@ public class DynamoDBProfiles implements Profiles {
     private final static String ROOT_ACCOUNT_ID = "root";
 
     private final ConcurrentMap<String, Settings> accounts;
+    private final ConcurrentMap<String, CompletableFuture<Settings>> loading;
+    private final ConcurrentMap<List<String>, ResolvedProfile> resolved;
+    private final AtomicLong generation;
+    private final ConcurrentMap<String, Long> loadedAt;
+    private final Set<String> refreshing;
+    private final Set<String> modified;
+    private long timeToLive;
+    private ExecutorService refreshExecutor;
 
     private final DynamoDB dynamodb;
     private final ObjectMapper json;
-    private final AWSKMS kms;
+    private DataKeyCache keys;
 
     public DynamoDBProfiles(DynamoDB dynamodb, AWSKMS kms, ObjectMapper json) {
-        this.kms = kms;
+        this.keys = new DataKeyCache(kms);
         this.dynamodb = dynamodb;
         this.json = json;
         accounts = new ConcurrentHashMap();
+        loading = new ConcurrentHashMap();
+        resolved = new ConcurrentHashMap();
+        generation = new AtomicLong();
+        loadedAt = new ConcurrentHashMap();
+        refreshing = ConcurrentHashMap.newKeySet();
+        modified = ConcurrentHashMap.newKeySet();
+    }
+
+    public DynamoDBProfiles withDataKeyCache(DataKeyCache keys) {
+        this.keys = keys;
+        return this;
+    }
+
+    // Settings older than timeToLive, or modified, are reloaded on the executor while the previous value is served
+    public DynamoDBProfiles withRefresh(Duration timeToLive, ExecutorService refreshExecutor) {
+        this.timeToLive = timeToLive.toMillis();
+        this.refreshExecutor = refreshExecutor;
+        return this;
+    }
+
+    // Loads the settings of every account with one scan
+    public void loadAll() {
+        Map<String, Settings> loaded = new LinkedHashMap();
+        long now = System.currentTimeMillis();
+        dynamodb.getTable("SalientProfile").scan(new ScanSpec()).forEach((item) -> {
+            String accountId = item.getString("accountId");
+            addProfile(loaded.computeIfAbsent(accountId, (id) -> new Settings()), accountId, item);
+        });
+        loaded.forEach((accountId, settings) -> {
+            install(accountId, settings, now);
+        });
+        log.info("Loaded settings of accounts: " + loaded.size());
     }
 
     private Settings getSettings(String accountId) {
-        return accounts.computeIfAbsent(accountId, (id) -> {
-            Settings settings = new Settings();
-            ItemCollection<QueryOutcome> items = dynamodb.getTable("SalientProfile")
-                    .query(new QuerySpec().withHashKey("accountId", id));
-            items.pages().forEach((page) -> {
-                page.iterator().forEachRemaining((item) -> {
-                    try {
-                        Profile profile = new Profile();
-                        if (item.hasAttribute("aliases")) {
-                            profile.setAliases(json.readValue(item.getJSON("aliases"), Map.class));
-                        }
-                        if (item.hasAttribute("properties")) {
-                            if (item.get("properties") instanceof byte[]) {
-                                log.info("Decrypt profile " + item.getString("profileName") );
-                                DecryptResult decrypt = kms.decrypt(new DecryptRequest().addEncryptionContextEntry("accountId", accountId).withCiphertextBlob(ByteBuffer.wrap(item.getBinary("properties"))));
-                                profile.setProperties(json.readValue(decrypt.getPlaintext().array(), Properties.class));
-                            } else {
-                                Properties properties = new Properties();
-                                properties.putAll(item.getMap("properties"));
-                                profile.setProperties(properties);
-                            }
-                        }
-                        if (item.hasAttribute("repositories")) {
-                            profile.setRepositories(json.readValue(item.getJSON("repositories"), json.getTypeFactory()
-                                    .constructCollectionType(Set.class, Repository.class)));
-                        }
-                        String name = item.getString("profileName");
-                        Boolean active = item.getBoolean("active");
-                        settings.withProfile(name, profile);
-                        if (active) {
-                            settings.withActiveProfile(name);
-                        }
-                    } catch (IOException ex) {
-                        throw new RuntimeException(ex);
+        Settings settings = accounts.get(accountId);
+        if (settings == null) {
+            return loadSettings(accountId);
+        } else if (refreshExecutor != null && loadedAt.getOrDefault(accountId, 0L) + timeToLive < System.currentTimeMillis()) {
+            refresh(accountId);
+        }
+        return settings;
+    }
+
+    // Concurrent lookups of a cold account wait on one load, no map lock is held while it queries and decrypts
+    private Settings loadSettings(String accountId) {
+        CompletableFuture<Settings> future = new CompletableFuture();
+        CompletableFuture<Settings> existing = loading.putIfAbsent(accountId, future);
+        if (existing != null) {
+            return existing.join();
+        }
+        try {
+            long loadedGeneration = generation.get();
+            long now = System.currentTimeMillis();
+            Settings settings = load(accountId);
+            // Not kept if settings were modified while loading
+            if (loadedGeneration == generation.get()) {
+                Settings installed = accounts.putIfAbsent(accountId, settings);
+                if (installed != null) {
+                    settings = installed;
+                } else {
+                    loadedAt.put(accountId, now);
+                    if (loadedGeneration != generation.get()) {
+                        accounts.remove(accountId, settings);
                     }
-                });
-            });
+                }
+            }
+            future.complete(settings);
             return settings;
+        } catch (RuntimeException ex) {
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            loading.remove(accountId, future);
+        }
+    }
+
+    private void refresh(String accountId) {
+        if (refreshing.add(accountId)) {
+            refreshExecutor.execute(() -> {
+                try {
+                    modified.remove(accountId);
+                    long now = System.currentTimeMillis();
+                    install(accountId, load(accountId), now);
+                } catch (RuntimeException ex) {
+                    log.error("Failed to refresh settings: " + accountId, ex);
+                    // Previous settings are served for another timeToLive rather than reloaded on every lookup
+                    loadedAt.put(accountId, System.currentTimeMillis());
+                } finally {
+                    refreshing.remove(accountId);
+                }
+                // Modified again while loading, the loaded settings may predate the change
+                if (modified.contains(accountId)) {
+                    refresh(accountId);
+                }
+            });
+        }
+    }
+
+    private void install(String accountId, Settings settings, long loaded) {
+        accounts.put(accountId, settings);
+        loadedAt.put(accountId, loaded);
+        invalidate(accountId);
+    }
+
+    protected Settings load(String accountId) {
+        Settings settings = new Settings();
+        ItemCollection<QueryOutcome> items = dynamodb.getTable("SalientProfile")
+                .query(new QuerySpec().withHashKey("accountId", accountId));
+        items.pages().forEach((page) -> {
+            page.iterator().forEachRemaining((item) -> {
+                addProfile(settings, accountId, item);
+            });
         });
+        return settings;
+    }
+
+    private void addProfile(Settings settings, String accountId, Item item) {
+        try {
+            Profile profile = new Profile();
+            if (item.hasAttribute("aliases")) {
+                profile.setAliases(json.readValue(item.getJSON("aliases"), Map.class));
+            }
+            if (item.hasAttribute("properties")) {
+                if (item.get("properties") instanceof byte[]) {
+                    log.info("Decrypt profile " + item.getString("profileName") );
+                    byte[] properties = keys.decrypt(ByteBuffer.wrap(item.getBinary("properties")), Collections.singletonMap("accountId", accountId));
+                    profile.setProperties(json.readValue(properties, Properties.class));
+                    Arrays.fill(properties, (byte) 0);
+                } else {
+                    Properties properties = new Properties();
+                    properties.putAll(item.getMap("properties"));
+                    profile.setProperties(properties);
+                }
+            }
+            if (item.hasAttribute("repositories")) {
+                profile.setRepositories(json.readValue(item.getJSON("repositories"), json.getTypeFactory()
+                        .constructCollectionType(Set.class, Repository.class)));
+            }
+            String name = item.getString("profileName");
+            Boolean active = item.getBoolean("active");
+            settings.withProfile(name, profile);
+            if (active) {
+                settings.withActiveProfile(name);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
     }
 
     @Override
@@ -133,9 +258,83 @@ public class DynamoDBProfiles implements Profiles {
         return aliases;
     }
 
+    // Keyed by accountId followed by the requested profiles
+    @Override
+    public ResolvedProfile resolve(String accountId, List<String> profiles) {
+        List<String> key = new ArrayList();
+        key.add(accountId);
+        if (profiles != null) {
+            key.addAll(profiles);
+        }
+        ResolvedProfile profile = resolved.get(key);
+        if (profile == null) {
+            long resolvedGeneration = generation.get();
+            profile = new ResolvedProfile(getAliases(accountId, profiles), getProperties(accountId, profiles));
+            // Not cached if settings were modified while resolving
+            if (resolvedGeneration == generation.get()) {
+                ResolvedProfile existing = resolved.putIfAbsent(key, profile);
+                if (existing != null) {
+                    profile = existing;
+                } else if (resolvedGeneration != generation.get()) {
+                    // Invalidated between the check and the put, the invalidation may have missed this entry
+                    resolved.remove(key, profile);
+                }
+            }
+        }
+        return profile;
+    }
+
+    @Override
+    public Set<String> getKnowledgeBaseIds() {
+        Set<String> knowledgeBaseIds = new LinkedHashSet();
+        getSettings(ROOT_ACCOUNT_ID).getAliases(null).values().forEach(knowledgeBaseIds::add);
+        // Active profiles of every account
+        ItemCollection<ScanOutcome> items = dynamodb.getTable("SalientProfile").scan(new ScanSpec()
+                .withProjectionExpression("aliases")
+                .withFilterExpression("#active = :active AND attribute_exists(aliases)")
+                .withNameMap(new NameMap().with("#active", "active"))
+                .withValueMap(new ValueMap().withBoolean(":active", true)));
+        items.forEach((item) -> {
+            try {
+                Map<String, String> aliases = json.readValue(item.getJSON("aliases"), Map.class);
+                knowledgeBaseIds.addAll(aliases.values());
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        // Aliases may name other aliases, only full group:artifact:version:name ids can be loaded
+        knowledgeBaseIds.removeIf((knowledgeBaseId) -> knowledgeBaseId == null || knowledgeBaseId.split(":").length != 4);
+        return knowledgeBaseIds;
+    }
+
     @Override
     public void modified(String accountId) {
-        accounts.remove(accountId);
+        if (refreshExecutor != null && accounts.containsKey(accountId)) {
+            // Previous settings are served until the reload completes
+            modified.add(accountId);
+            refresh(accountId);
+        } else {
+            // A load in progress may predate the change, later lookups load again
+            loading.remove(accountId);
+            accounts.remove(accountId);
+            loadedAt.remove(accountId);
+            invalidate(accountId);
+        }
+    }
+
+    private void invalidate(String accountId) {
+        generation.incrementAndGet();
+        if (ROOT_ACCOUNT_ID.equals(accountId)) {
+            resolved.clear();
+        } else {
+            resolved.keySet().removeIf((key) -> accountId.equals(key.get(0)));
+        }
+    }
+
+    public void shutdown() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdown();
+        }
     }
 
 }
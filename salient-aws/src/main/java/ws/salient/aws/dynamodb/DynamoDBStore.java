@@ -16,7 +16,6 @@
 
 package ws.salient.aws.dynamodb;
 
-import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.ItemCollection;
@@ -26,46 +25,57 @@ import com.amazonaws.services.dynamodbv2.document.RangeKeyCondition;
 import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
 import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
 import com.amazonaws.services.kms.AWSKMS;
-import com.amazonaws.services.kms.model.DataKeySpec;
-import com.amazonaws.services.kms.model.DecryptRequest;
-import com.amazonaws.services.kms.model.DecryptResult;
-import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
 import com.amazonaws.services.kms.model.GenerateDataKeyResult;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Injector;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectStreamClass;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ws.salient.aws.dynamodb.BatchWriter.Write;
+import ws.salient.aws.s3.BlobStore;
 import ws.salient.knowledge.KnowledgeBase;
 import ws.salient.knowledge.KnowledgeRepository;
 import ws.salient.model.Command;
-import ws.salient.model.commands.WorkItem;
+import ws.salient.model.codec.CommandCodec;
+import ws.salient.model.codec.CommandDictionary;
 import ws.salient.session.Session;
 import ws.salient.session.SessionStore;
 import ws.salient.session.Sessions;
@@ -73,91 +83,221 @@ import ws.salient.session.Sessions;
 
 public class DynamoDBStore implements SessionStore {
 
-    private static final DateTimeFormatter NANO_INSTANT = new DateTimeFormatterBuilder()
+    static final DateTimeFormatter NANO_INSTANT = new DateTimeFormatterBuilder()
             .parseCaseInsensitive()
             .appendInstant(9).toFormatter();
 
     private static final Logger log = LoggerFactory.getLogger(SessionStore.class);
 
+    private static final int SPILL_THRESHOLD = 300 * 1024;
+    private static final int SPILL_PART_SIZE = 1024 * 1024;
+
+    private static final int GCM_NONCE_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Map<String, Cipher>> CIPHERS = ThreadLocal.withInitial(HashMap::new);
+
     private final DynamoDB dynamodb;
     private final ObjectMapper json;
-    protected final Queue<Item> sessionsToPut;
-    protected final Queue<Item> eventsToPut;
-    private final ExecutorService putItemExecutor;
-    private final AWSKMS kms;
-    private final String transformation;
+    private BatchWriter[] writers;
+    private String transformation;
+    private BlobStore blobs;
+    private ExecutorService blobExecutor;
+    private final Map<String, Map<String, Object>> spilled = new ConcurrentHashMap();
+    private ExecutorService replayExecutor = ForkJoinPool.commonPool();
+    private ExecutorService loadExecutor = ForkJoinPool.commonPool();
+    private ExecutorService decodeExecutor = ForkJoinPool.commonPool();
+    private int decodeBatchSize = 16;
+    private EventCompactor compactor;
+    private String shardId;
+    private WriteAheadLog wal;
+    private DataKeyCache keys;
 
     public DynamoDBStore(DynamoDB dynamodb, AWSKMS kms, ObjectMapper json, ExecutorService putItemExecutor) {
-        this.kms = kms;
         this.dynamodb = dynamodb;
         this.json = json;
-        this.transformation = "AES/CBC/PKCS5Padding";
-        this.putItemExecutor = putItemExecutor;
-        sessionsToPut = new ConcurrentLinkedQueue();
-        eventsToPut = new ConcurrentLinkedQueue();
+        this.transformation = "AES/GCM/NoPadding";
+        this.writers = new BatchWriter[] {new BatchWriter(dynamodb, putItemExecutor)};
+        this.keys = new DataKeyCache(kms);
+    }
+
+    // Session keys are decrypted through the cache and new sessions may draw keys from its pool
+    public DynamoDBStore withDataKeyCache(DataKeyCache keys) {
+        this.keys = keys;
+        return this;
+    }
+
+    // Cipher used for new items, items keep the transformation they were written with so older CBC items stay readable
+    public DynamoDBStore withTransformation(String transformation) {
+        this.transformation = transformation;
+        return this;
+    }
+
+    // Items are written once flushSize are queued or flushMillis have passed
+    public DynamoDBStore withFlushPolicy(int flushSize, long flushMillis) {
+        for (BatchWriter writer : writers) {
+            writer.withFlushPolicy(flushSize, flushMillis);
+        }
+        return this;
+    }
+
+    // Items still unprocessed after maxAttempts flushes are failed and kept in the dead letter store, if any
+    public DynamoDBStore withRetryPolicy(int maxAttempts, BlobStore deadLetters) {
+        for (BatchWriter writer : writers) {
+            writer.withMaxAttempts(maxAttempts).withDeadLetters(deadLetters);
+        }
+        return this;
+    }
+
+    // Writes are partitioned by sessionId, so each session's writes stay ordered on one lane
+    // while different sessions flush concurrently
+    public DynamoDBStore withWriterLanes(int lanes) {
+        BatchWriter[] resized = Arrays.copyOf(writers, lanes);
+        for (int lane = writers.length; lane < lanes; lane++) {
+            resized[lane] = new BatchWriter(dynamodb, Executors.newSingleThreadExecutor());
+        }
+        for (int lane = lanes; lane < writers.length; lane++) {
+            writers[lane].shutdown();
+        }
+        writers = resized;
+        return this;
+    }
+
+    // Items are logged locally before they are queued, items logged before a crash on this host are written again
+    public DynamoDBStore withWriteAheadLog(WriteAheadLog wal) {
+        this.wal = wal;
+        wal.recover((tableName, item) -> {
+            Write write = new Write(tableName, item);
+            if ("SalientSession".equals(tableName)) {
+                write.withPrepare(this::spill);
+            }
+            // Already kept in the dead letter store, the log does not need its own copy
+            CompletableFuture<Void> replayed = new CompletableFuture();
+            getWriter(item.getString("sessionId")).write(write).whenComplete((result, ex) -> {
+                if (ex == null || write.isDeadLettered()) {
+                    replayed.complete(null);
+                } else {
+                    replayed.completeExceptionally(ex);
+                }
+            });
+            return replayed;
+        });
+        return this;
+    }
+
+    protected BatchWriter getWriter(String sessionId) {
+        return writers[Math.floorMod(sessionId.hashCode(), writers.length)];
+    }
+
+    public void registerMetrics(String shardId) {
+        for (int lane = 0; lane < writers.length; lane++) {
+            writers[lane].register(shardId, lane);
+        }
+    }
+
+    // Completes once every item put so far is stored
+    public CompletableFuture<Void> flush() {
+        CompletableFuture[] flushes = new CompletableFuture[writers.length];
+        for (int lane = 0; lane < writers.length; lane++) {
+            flushes[lane] = writers[lane].flush();
+        }
+        return CompletableFuture.allOf(flushes);
+    }
+
+    public DynamoDBStore withBlobStore(BlobStore blobs) {
+        return withBlobStore(blobs, Executors.newFixedThreadPool(4));
+    }
+
+    // Spilled parts are put and fetched concurrently on the blob executor, which is shut down with the store
+    public DynamoDBStore withBlobStore(BlobStore blobs, ExecutorService blobExecutor) {
+        this.blobs = blobs;
+        this.blobExecutor = blobExecutor;
+        return this;
+    }
+
+    public DynamoDBStore withReplayExecutor(ExecutorService replayExecutor) {
+        this.replayExecutor = replayExecutor;
+        return this;
+    }
+
+    // Event items are decrypted and decoded in batches of decodeBatchSize across the executor,
+    // batches are still replayed in timestamp order on the loading thread
+    public DynamoDBStore withDecodeExecutor(ExecutorService decodeExecutor, int decodeBatchSize) {
+        this.decodeExecutor = decodeExecutor;
+        this.decodeBatchSize = decodeBatchSize;
+        return this;
+    }
+
+    // Must not share threads with the replay executor, loads block on replayed event pages
+    public DynamoDBStore withLoadExecutor(ExecutorService loadExecutor) {
+        this.loadExecutor = loadExecutor;
+        return this;
+    }
+
+    // Records the sessions active on this shard, so a worker taking over the shard can preload them
+    public DynamoDBStore withShardId(String shardId) {
+        this.shardId = shardId;
+        return this;
+    }
+
+    public DynamoDBStore withCompactor(EventCompactor compactor) {
+        this.compactor = compactor;
+        return this;
     }
 
     public void put(Session session, Command command, int requestIndex) {
         try {
 
-            eventsToPut.offer(encrypt(new Item()
-                    .withPrimaryKey("sessionId", session.getSessionId(), "timestamp", NANO_INSTANT.format(command.getTimestamp().plusNanos(requestIndex)))
-                    .withBinary("command", json.writeValueAsBytes(command)), session.getSecretKey(), "command"));
+            CommandDictionary dictionary = session.getDictionary();
+            CommandCodec codec = new CommandCodec(session.getKnowledgeBase().getJson());
+            // Snapshots share the key of their event, so replay picks up later events of the same batch
+            String timestamp = NANO_INSTANT.format(command.getTimestamp().plusNanos(requestIndex));
+            BatchWriter writer = getWriter(session.getSessionId());
+            Item event = new Item()
+                    .withPrimaryKey("sessionId", session.getSessionId(), "timestamp", timestamp)
+                    .withBinary("command", codec.encode(command, dictionary));
+            if (command.getSequenceNumber() != null) {
+                event.withString("shardId", command.getShardId())
+                        .withString("sequenceNumber", command.getSequenceNumber());
+            }
+            write(writer, new Write("SalientSessionEvent", encrypt(event, session.getSecretKey(), "command")));
 
             if (session.store(command)) {
                 byte[] sessionBytes = session.toByteArray();
                 byte[] properties = json.writeValueAsBytes(session.getProperties());
-                Item item = new Item().withPrimaryKey("sessionId", command.getSessionId(), "timestamp", command.getTimestamp().toString())
+                Item item = new Item().withPrimaryKey("sessionId", command.getSessionId(), "timestamp", timestamp)
                         .withString("accountId", command.getAccountId())
                         .withMap("factCount", session.getFactCount())
                         .withInt("processCount", session.getProcessCount())
                         .withString("knowledgeBaseId", command.getKnowledgeBaseId())
                         .withBinary("session", sessionBytes)
-                        .withBinary("properties", properties);
+                        .withBinary("properties", properties)
+                        .withBinary("dictionary", dictionary.toByteArray());
+                if (!session.getSequenceNumbers().isEmpty()) {
+                    item.withMap("sequenceNumbers", new LinkedHashMap(session.getSequenceNumbers()));
+                }
 
                 if (session.getSecretKey() != null) {
                     item.withMap("secretKey", new LinkedHashMap());
                     item.getMap("secretKey").put("encrypted", session.getEncryptedKey());
                     item.getMap("secretKey").put("algorithm", session.getSecretKey().getAlgorithm());
+                    if (session.getEncryptionContext() != null) {
+                        item.getMap("secretKey").put("context", new LinkedHashMap(session.getEncryptionContext()));
+                    }
                 }
 
                 if (session.getSecretKey() != null) {
-                    item = encrypt(item, session.getSecretKey(), "properties", "session");
+                    item = encrypt(item, session.getSecretKey(), "properties", "session", "dictionary");
                 }
-                sessionsToPut.offer(item);
+                Snapshot snapshot = new Snapshot(item, dictionary, dictionary.size(), command.getProfiles());
+                // Only the latest queued snapshot of a session is written
+                write(writer, new Write("SalientSession", item)
+                        .withReplaceKey("SalientSession/" + snapshot.getSessionId())
+                        .withPrepare(this::spill)
+                        .withStored(() -> {
+                            stored(snapshot);
+                        }));
             }
-
-            putItemExecutor.execute(() -> {
-                List<Item> eventItems = new LinkedList();
-                Item eventItem = eventsToPut.poll();
-                while (eventItem != null) {
-                    eventItems.add(eventItem);
-                    eventItem = eventsToPut.poll();
-                }
-                if (!eventItems.isEmpty()) {
-                    TableWriteItems eventWriteItems = new TableWriteItems("SalientSessionEvent").withItemsToPut(eventItems);
-                    log.info("Storing events: " + eventItems.size());
-                    BatchWriteItemOutcome result = dynamodb.batchWriteItem(eventWriteItems);
-                    if (!result.getUnprocessedItems().isEmpty()) {
-                        log.error("Unprocessed items: " + result.toString());
-                    }
-                }
-                Map<String, Item> sessionItems = new LinkedHashMap();
-                Item sessionItem = sessionsToPut.poll();
-                while (sessionItem != null) {
-                    // Only store latest session item
-                    sessionItems.put(sessionItem.getString("sessionId"), sessionItem);
-                    sessionItem = sessionsToPut.poll();
-                }
-                if (!sessionItems.isEmpty()) {
-                    TableWriteItems sessionWriteItems = new TableWriteItems("SalientSession").withItemsToPut(sessionItems.values());
-                    log.info("Storing sessions: " + sessionItems.size());
-                    BatchWriteItemOutcome result = dynamodb.batchWriteItem(sessionWriteItems);
-                    if (!result.getUnprocessedItems().isEmpty()) {
-                        log.error("Unprocessed items: " + result.toString());
-                    }
-                }
-            });
         } catch (JsonProcessingException ex) {
             throw new RuntimeException(ex);
         }
@@ -172,12 +312,30 @@ public class DynamoDBStore implements SessionStore {
                 .withMaxResultSize(1));
     }
 
+    // BatchGetItem needs the full key and the latest snapshot timestamp is not known up front,
+    // so snapshot and event queries for the batch are issued concurrently on the bounded load executor
+    @Override
+    public Map<String, Session> getAll(Collection<Command> commands, KnowledgeRepository repository, Function<Command, Properties> properties, Injector parentInjector, Sessions sessions) {
+        Map<String, CompletableFuture<Session>> loading = new LinkedHashMap();
+        commands.forEach((command) -> {
+            loading.put(command.getSessionId(), CompletableFuture.supplyAsync(() -> {
+                return get(command, repository, properties.apply(command), parentInjector, sessions);
+            }, loadExecutor));
+        });
+        Map<String, Session> loaded = new LinkedHashMap();
+        loading.forEach((sessionId, session) -> {
+            loaded.put(sessionId, session.join());
+        });
+        return loaded;
+    }
+
     public Session get(Command command, KnowledgeRepository repository, Properties properties, Injector parentInjector, Sessions sessions, QuerySpec sessionQuery) {
         String sessionId = command.getSessionId();
         String accountId = command.getAccountId();
 
         SecretKeySpec secretKey;
         ByteBuffer encryptedKey;
+        Map<String, String> encryptionContext = null;
         Session session = new Session(sessionId);
         Page<Item, QueryOutcome> page = dynamodb.getTable("SalientSession")
                 .query(sessionQuery).firstPage();
@@ -185,125 +343,442 @@ public class DynamoDBStore implements SessionStore {
 
             try {
                 Item result = page.iterator().next();
+                if (isLegacyTimestamp(result.getString("timestamp"))) {
+                    result = getLatestInSecond(sessionId, result.getString("timestamp"));
+                }
 
                 encryptedKey = ByteBuffer.wrap((byte[]) result.getMap("secretKey").get("encrypted"));
                 if (encryptedKey != null) {
-                    DecryptResult decrypt = kms.decrypt(new DecryptRequest()
-                            .addEncryptionContextEntry("accountId", accountId)
-                            .addEncryptionContextEntry("sessionId", sessionId)
-                            .withCiphertextBlob(encryptedKey));
-                    byte[] key = decrypt.getPlaintext().array();
+                    // Keys drawn from the pool record their context, older keys are bound to account and session
+                    encryptionContext = (Map) result.getMap("secretKey").get("context");
+                    byte[] key = keys.decrypt(encryptedKey, encryptionContext != null ? encryptionContext : getEncryptionContext(accountId, sessionId));
                     secretKey = new SecretKeySpec(key, (String) result.getMap("secretKey").get("algorithm"));
+                    Arrays.fill(key, (byte) 0);
                 } else {
                     secretKey = null;
                 }
 
-                result = decrypt(result, secretKey, "properties", "session");
+                result = decrypt(unspill(result), secretKey, "properties", "session", "dictionary");
 
                 properties = json.readValue(result.getBinary("properties"), Properties.class);
                 String knowledgeBaseId = result.getString("knowledgeBaseId");
                 KnowledgeBase knowledgeBase = repository.getKnowledgeBase(knowledgeBaseId);
                 String timestamp = result.getString("timestamp");
+                CommandDictionary dictionary = CommandDictionary.fromByteArray(result.getBinary("dictionary"));
+                CommandCodec codec = new CommandCodec(knowledgeBase.getJson());
 
-                session.init(knowledgeBase, properties, parentInjector, Instant.parse(timestamp), result.getBinary("session"), sessions);
+                // Fetch and decode events while the snapshot is unmarshalled
+                BlockingQueue<CompletableFuture<List<Command>>> eventPages = getEvents(sessionId, timestamp, secretKey, codec, dictionary);
 
-                int processCount = session.getProcessCount();
-
-                List<Item> eventItems = new LinkedList();
-                ItemCollection<QueryOutcome> query = dynamodb.getTable("SalientSessionEvent").query(new QuerySpec().withConsistentRead(true).withHashKey("sessionId", sessionId)
-                        .withRangeKeyCondition(new RangeKeyCondition("timestamp").gt(timestamp)));
-                query.pages().forEach((eventPage) -> {
-                    eventPage.forEach((eventItem) -> {
-                        eventItems.add(eventItem);
-                    });
-                });
+                session.init(knowledgeBase, properties, parentInjector, Instant.parse(timestamp), result.getBinary("session"), sessions);
+                session.setDictionary(dictionary);
+                if (result.hasAttribute("sequenceNumbers")) {
+                    session.setSequenceNumbers(result.getMap("sequenceNumbers"));
+                }
+                if (result.hasAttribute("blob")) {
+                    spilled.put(sessionId, result.getMap("blob"));
+                }
 
-                List<Command> commands = new LinkedList();
-
-                eventItems.forEach((eventItem) -> {
-                    try {
-                        eventItem = decrypt(eventItem, secretKey, "command");
-                        byte[] value = eventItem.getBinary("command");
-                        ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(value)) {
-                            protected Class<?> resolveClass(ObjectStreamClass desc)
-                                    throws IOException,
-                                    ClassNotFoundException {
-                                return session.getKnowledgeBase().getContainer().getClassLoader().loadClass(desc.getName());
-                            }
-                        };
-                        Command event = (Command) objectIn.readObject();
-                        if (event instanceof WorkItem) {
-                            session.getWorkItemHandlers().forEach((handler) -> {
-                                handler.getCompletedWorkItemIds().add(((WorkItem) event).getWorkItemId());
-                            });
-                        }
-                        commands.add(event);
-                    } catch (ClassNotFoundException | IOException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                });
-                commands.forEach((event) -> {
-                    session.accept(event);
-                });
-                session.getWorkItemHandlers().forEach((handler) -> {
-                    handler.getCompletedWorkItemIds().clear();
-                });
+                // Replay each page as soon as it is decoded, work items are only dispatched once every event is replayed
+                session.setReplaying(true);
+                List<Command> events = eventPages.take().join();
+                while (events != null) {
+                    events.forEach(session::accept);
+                    events = eventPages.take().join();
+                }
+                session.setReplaying(false);
 
-            } catch (IOException ex) {
+            } catch (IOException | InterruptedException ex) {
                 throw new RuntimeException(ex);
             }
         } else {
             GenerateDataKeyResult dataKey = generateEncryptionKey(accountId, sessionId);
-            byte[] key = dataKey.getPlaintext().array();
+            byte[] key = DataKeyCache.toByteArray(dataKey.getPlaintext());
             secretKey = new SecretKeySpec(key, "AES");
+            Arrays.fill(key, (byte) 0);
             encryptedKey = dataKey.getCiphertextBlob();
+            if (keys.isPooled()) {
+                encryptionContext = keys.getPoolContext(accountId);
+            }
             KnowledgeBase knowledgeBase = repository.getKnowledgeBase(command.getKnowledgeBaseId());
             session.init(knowledgeBase, properties, parentInjector, command.getTimestamp(), sessions);
         }
         session.setEncryptedKey(encryptedKey);
         session.setSecretKey(secretKey);
+        session.setEncryptionContext(encryptionContext);
         return session;
     }
 
+    protected void write(BatchWriter writer, Write write) {
+        if (wal != null) {
+            WriteAheadLog.Entry entry = wal.append(write.getTableName(), write.getItem());
+            // A failed item stays in the log, so it is written again on the next start
+            write.getFuture().whenComplete((result, ex) -> {
+                if (ex == null || write.isDeadLettered()) {
+                    entry.release();
+                }
+            });
+        }
+        writer.write(write);
+    }
+
+    protected void stored(Snapshot snapshot) {
+        snapshot.stored();
+        superseded(snapshot);
+        if (compactor != null) {
+            compactor.snapshotStored(snapshot.getSessionId(), snapshot.getTimestamp());
+        }
+        if (shardId != null) {
+            index(snapshot);
+        }
+    }
+
+    protected void index(Snapshot snapshot) {
+        Item item = new Item().withPrimaryKey("shardId", shardId, "sessionId", snapshot.getSessionId())
+                .withString("lastActive", snapshot.getTimestamp())
+                .withString("accountId", snapshot.item.getString("accountId"))
+                .withString("knowledgeBaseId", snapshot.item.getString("knowledgeBaseId"));
+        if (snapshot.profiles != null) {
+            item.withList("profiles", snapshot.profiles);
+        }
+        getWriter(snapshot.getSessionId()).write(new Write("SalientShardSession", item)
+                .withReplaceKey("SalientShardSession/" + snapshot.getSessionId()));
+    }
+
+    // Most recently active sessions of this shard, as commands that load them
+    public List<Command> getActiveSessions(Duration activeWithin, int limit) {
+        String since = NANO_INSTANT.format(Instant.now().minus(activeWithin));
+        List<Item> active = new ArrayList();
+        List<Item> inactive = new ArrayList();
+        dynamodb.getTable("SalientShardSession").query(new QuerySpec().withHashKey("shardId", shardId)).forEach((item) -> {
+            if (item.getString("lastActive").compareTo(since) >= 0) {
+                active.add(item);
+            } else {
+                inactive.add(item);
+            }
+        });
+        // With a compactor, sessions leave the index once compacted
+        for (int index = 0; compactor == null && index < inactive.size(); index += 25) {
+            TableWriteItems deletes = new TableWriteItems("SalientShardSession");
+            inactive.subList(index, Math.min(inactive.size(), index + 25)).forEach((item) -> {
+                deletes.addHashAndRangePrimaryKeyToDelete("shardId", shardId, "sessionId", item.getString("sessionId"));
+            });
+            dynamodb.batchWriteItem(deletes);
+        }
+        Instant now = Instant.now();
+        return active.stream()
+                .sorted(Comparator.comparing((Item item) -> item.getString("lastActive")).reversed())
+                .limit(limit)
+                .map((item) -> {
+                    List<String> profiles = item.getList("profiles");
+                    return new Command(item.getString("sessionId"))
+                            .withAccountId(item.getString("accountId"))
+                            .withKnowledgeBaseId(item.getString("knowledgeBaseId"))
+                            .withProfiles(profiles)
+                            .withTimestamp(now);
+                }).collect(Collectors.toList());
+    }
+
+    // Snapshots stored before nanosecond range keys are keyed by Instant.toString(), which drops trailing zeros.
+    // Such a key sorts after a later nanosecond key of the same second, so the latest of that second is picked by instant.
+    protected Item getLatestInSecond(String sessionId, String timestamp) {
+        ItemCollection<QueryOutcome> query = dynamodb.getTable("SalientSession").query(new QuerySpec().withConsistentRead(true).withHashKey("sessionId", sessionId)
+                .withRangeKeyCondition(new RangeKeyCondition("timestamp").beginsWith(timestamp.substring(0, 19))));
+        return getLatest(query);
+    }
+
+    static Item getLatest(Iterable<Item> items) {
+        Item latest = null;
+        for (Item item : items) {
+            if (latest == null || Instant.parse(item.getString("timestamp")).compareTo(Instant.parse(latest.getString("timestamp"))) >= 0) {
+                latest = item;
+            }
+        }
+        return latest;
+    }
+
+    static boolean isLegacyTimestamp(String timestamp) {
+        return timestamp.length() != 30;
+    }
+
+    // Range keys compare as strings, so the bound is given in the nanosecond format events are keyed by.
+    // A legacy snapshot is keyed by its batch time, not by the request index it was taken at, and already holds
+    // events of its own batch keyed a few nanoseconds later. Replay starts after the last instant its key can stand for.
+    static String getEventsAfter(String timestamp) {
+        if (!isLegacyTimestamp(timestamp)) {
+            return timestamp;
+        }
+        int fraction = timestamp.indexOf('.');
+        int digits = fraction < 0 ? 0 : timestamp.length() - fraction - 2;
+        long precision = 1;
+        for (int digit = digits; digit < 9; digit++) {
+            precision *= 10;
+        }
+        return NANO_INSTANT.format(Instant.parse(timestamp).plusNanos(precision - 1));
+    }
+
+    protected BlockingQueue<CompletableFuture<List<Command>>> getEvents(String sessionId, String timestamp, SecretKeySpec secretKey, CommandCodec codec, CommandDictionary dictionary) {
+        BlockingQueue<CompletableFuture<List<Command>>> eventPages = new LinkedBlockingQueue();
+        replayExecutor.execute(() -> {
+            try {
+                ItemCollection<QueryOutcome> query = dynamodb.getTable("SalientSessionEvent").query(new QuerySpec().withConsistentRead(true).withHashKey("sessionId", sessionId)
+                        .withRangeKeyCondition(new RangeKeyCondition("timestamp").gt(getEventsAfter(timestamp))));
+                query.pages().forEach((eventPage) -> {
+                    List<Item> eventItems = new ArrayList();
+                    eventPage.forEach(eventItems::add);
+                    // Futures are queued in submission order, so batches replay in timestamp order whichever finishes decoding first
+                    for (int from = 0; from < eventItems.size(); from += decodeBatchSize) {
+                        List<Item> batch = eventItems.subList(from, Math.min(from + decodeBatchSize, eventItems.size()));
+                        eventPages.add(CompletableFuture.supplyAsync(() -> {
+                            return batch.stream().map((eventItem) -> {
+                                eventItem = decrypt(eventItem, secretKey, "command");
+                                Command event = codec.decode(eventItem.getBinary("command"), dictionary);
+                                event.setShardId(eventItem.getString("shardId"));
+                                event.setSequenceNumber(eventItem.getString("sequenceNumber"));
+                                return event;
+                            }).collect(Collectors.toList());
+                        }, decodeExecutor));
+                    }
+                });
+                eventPages.add(CompletableFuture.completedFuture(null));
+            } catch (RuntimeException ex) {
+                CompletableFuture<List<Command>> failed = new CompletableFuture();
+                failed.completeExceptionally(ex);
+                eventPages.add(failed);
+            }
+        });
+        return eventPages;
+    }
+
     public void shutdown() {
         try {
-            if (putItemExecutor != null) {
-                log.info("Shutting down putItems");
-                putItemExecutor.shutdown();
-                putItemExecutor.awaitTermination(60, TimeUnit.SECONDS);
-                log.info("PutItems completed");
+            log.info("Shutting down putItems");
+            CompletableFuture[] shutdowns = new CompletableFuture[writers.length];
+            for (int lane = 0; lane < writers.length; lane++) {
+                shutdowns[lane] = CompletableFuture.runAsync(writers[lane]::shutdown);
             }
+            CompletableFuture.allOf(shutdowns).join();
+            if (wal != null) {
+                wal.close();
+            }
+            log.info("PutItems completed");
+            shutdown(replayExecutor);
+            shutdown(loadExecutor);
+            shutdown(decodeExecutor);
+            shutdown(blobExecutor);
+            if (compactor != null) {
+                compactor.shutdown();
+            }
+            keys.shutdown();
         } catch (Exception ex) {
             log.error("Shutdown failed.", ex);
         }
     }
 
+    // Executors passed in belong to the store, the common pool default is shared and left running
+    private static void shutdown(ExecutorService executor) {
+        if (executor != null && executor != ForkJoinPool.commonPool()) {
+            executor.shutdown();
+        }
+    }
+
+    // Snapshots over the DynamoDB item limit are written to the blob store in parts, leaving a pointer in the item
+    public Item spill(Item item) {
+        byte[] sessionBytes = item.getBinary("session");
+        if (sessionBytes == null) {
+            return item;
+        }
+        int itemSize = getItemSize(item);
+        if (itemSize < SPILL_THRESHOLD) {
+            return item;
+        }
+        if (blobs == null) {
+            log.error("Session " + item.getString("sessionId") + " is " + itemSize + " bytes, exceeds item limit with no blob store");
+            return item;
+        }
+        String key = item.getString("sessionId") + "/" + item.getString("timestamp");
+        int parts = (sessionBytes.length + SPILL_PART_SIZE - 1) / SPILL_PART_SIZE;
+        List<CompletableFuture<Void>> puts = new LinkedList();
+        for (int index = 0; index < parts; index++) {
+            String partKey = key + "/" + index;
+            byte[] part = Arrays.copyOfRange(sessionBytes, index * SPILL_PART_SIZE, Math.min(sessionBytes.length, (index + 1) * SPILL_PART_SIZE));
+            puts.add(CompletableFuture.runAsync(() -> {
+                blobs.put(partKey, part);
+            }, blobExecutor));
+        }
+        CompletableFuture.allOf(puts.toArray(new CompletableFuture[puts.size()])).join();
+        log.info("Spilled session " + item.getString("sessionId") + ": " + sessionBytes.length);
+        Map<String, Object> blob = new LinkedHashMap();
+        blob.put("key", key);
+        blob.put("parts", parts);
+        blob.put("length", sessionBytes.length);
+        item.removeAttribute("session");
+        item.withMap("blob", blob);
+        return item;
+    }
+
+    public Item unspill(Item item) {
+        if (item.hasAttribute("blob")) {
+            Map<String, Object> blob = item.getMap("blob");
+            String key = (String) blob.get("key");
+            int parts = ((Number) blob.get("parts")).intValue();
+            int length = ((Number) blob.get("length")).intValue();
+            List<CompletableFuture<byte[]>> gets = new LinkedList();
+            for (int index = 0; index < parts; index++) {
+                String partKey = key + "/" + index;
+                gets.add(CompletableFuture.supplyAsync(() -> {
+                    return blobs.get(partKey);
+                }, blobExecutor));
+            }
+            ByteBuffer sessionBytes = ByteBuffer.allocate(length);
+            gets.forEach((part) -> {
+                sessionBytes.put(part.join());
+            });
+            item.withBinary("session", sessionBytes.array());
+        }
+        return item;
+    }
+
+    // Attribute names and values as DynamoDB counts them, nested values are sized by their JSON
+    protected int getItemSize(Item item) {
+        try {
+            int size = 0;
+            for (Map.Entry<String, Object> attribute : item.attributes()) {
+                size += attribute.getKey().getBytes(StandardCharsets.UTF_8).length;
+                Object value = attribute.getValue();
+                if (value instanceof byte[]) {
+                    size += ((byte[]) value).length;
+                } else if (value instanceof String) {
+                    size += ((String) value).getBytes(StandardCharsets.UTF_8).length;
+                } else if (value != null) {
+                    size += json.writeValueAsBytes(value).length;
+                }
+            }
+            return size;
+        } catch (JsonProcessingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // Once a later snapshot is stored, the parts spilled by the snapshot it replaces are no longer read
+    protected void superseded(Snapshot snapshot) {
+        Map<String, Object> blob = snapshot.item.hasAttribute("blob") ? snapshot.item.getMap("blob") : null;
+        Map<String, Object> previous = blob != null ? spilled.put(snapshot.getSessionId(), blob) : spilled.remove(snapshot.getSessionId());
+        if (previous != null && (blob == null || !previous.get("key").equals(blob.get("key")))) {
+            deleteSpilled(previous);
+        }
+    }
+
+    public void deleteSpilled(Map<String, Object> blob) {
+        if (blobs == null) {
+            return;
+        }
+        String key = (String) blob.get("key");
+        int parts = ((Number) blob.get("parts")).intValue();
+        CompletableFuture.runAsync(() -> {
+            for (int index = 0; index < parts; index++) {
+                blobs.delete(key + "/" + index);
+            }
+            log.info("Deleted spilled session " + key);
+        }, blobExecutor).exceptionally((ex) -> {
+            log.warn("Failed to delete spilled session " + key, ex);
+            return null;
+        });
+    }
+
     public GenerateDataKeyResult generateEncryptionKey(String accountId, String sessionId) {
-        GenerateDataKeyResult generateDataKey = kms.generateDataKey(
-                new GenerateDataKeyRequest()
-                .withKeySpec(DataKeySpec.AES_128)
-                .addEncryptionContextEntry("accountId", accountId)
-                .addEncryptionContextEntry("sessionId", sessionId)
-                .withKeyId("alias/salient"));
-        return generateDataKey;
+        return keys.generate(accountId, getEncryptionContext(accountId, sessionId));
+    }
+
+    protected Map<String, String> getEncryptionContext(String accountId, String sessionId) {
+        Map<String, String> context = new LinkedHashMap();
+        context.put("accountId", accountId);
+        context.put("sessionId", sessionId);
+        return context;
     }
     
+    protected static class Snapshot {
+
+        private final Item item;
+        private final CommandDictionary dictionary;
+        private final int dictionarySize;
+        private final List<String> profiles;
+
+        public Snapshot(Item item, CommandDictionary dictionary, int dictionarySize, List<String> profiles) {
+            this.item = item;
+            this.dictionary = dictionary;
+            this.dictionarySize = dictionarySize;
+            this.profiles = profiles;
+        }
+
+        public String getSessionId() {
+            return item.getString("sessionId");
+        }
+
+        public String getTimestamp() {
+            return item.getString("timestamp");
+        }
+
+        // Events may only reference dictionary entries once a snapshot holding them is stored
+        public void stored() {
+            dictionary.commit(dictionarySize);
+        }
+
+    }
+
+    // Ciphers are looked up once per thread and transformation, then re-initialised per item
+    private static Cipher getCipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Map<String, Cipher> cached = CIPHERS.get();
+        Cipher cipher = cached.get(transformation);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            cached.put(transformation, cipher);
+        }
+        return cipher;
+    }
+
+    private static byte[] doFinal(Cipher cipher, byte[] value) throws IllegalBlockSizeException, BadPaddingException, ShortBufferException {
+        // Output is sized up front, GCM sizes are exact so the ciphertext is written without an extra copy
+        byte[] output = new byte[cipher.getOutputSize(value.length)];
+        int length = cipher.doFinal(value, 0, value.length, output, 0);
+        return length == output.length ? output : Arrays.copyOf(output, length);
+    }
+
     public Item encrypt(Item item, SecretKeySpec key, String... attributes) {
         try {
             if (key != null) {
-                Cipher cipher = Cipher.getInstance(transformation);
-                cipher.init(Cipher.ENCRYPT_MODE, key);
-                byte[] iv = cipher.getIV();
-                for (String attribute : attributes) {
-                    byte[] value = item.getBinary(attribute);
-                    item.withBinary(attribute, cipher.doFinal(value));
+                Cipher cipher = getCipher(transformation);
+                Map<String, Object> cipherMap = new LinkedHashMap();
+                cipherMap.put("transformation", transformation);
+                if (transformation.startsWith("AES/GCM/")) {
+                    // A fresh nonce per attribute, a GCM nonce must never repeat under the same key
+                    Map<String, Object> nonces = new LinkedHashMap();
+                    for (String attribute : attributes) {
+                        byte[] value = item.getBinary(attribute);
+                        if (value != null) {
+                            byte[] nonce = new byte[GCM_NONCE_LENGTH];
+                            RANDOM.nextBytes(nonce);
+                            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, nonce));
+                            cipher.updateAAD(attribute.getBytes(StandardCharsets.UTF_8));
+                            item.withBinary(attribute, doFinal(cipher, value));
+                            nonces.put(attribute, nonce);
+                        }
+                    }
+                    cipherMap.put("nonces", nonces);
+                } else {
+                    cipher.init(Cipher.ENCRYPT_MODE, key);
+                    for (String attribute : attributes) {
+                        byte[] value = item.getBinary(attribute);
+                        if (value != null) {
+                            item.withBinary(attribute, doFinal(cipher, value));
+                        }
+                    }
+                    cipherMap.put("iv", cipher.getIV());
                 }
-                item.withMap("cipher", new LinkedHashMap());
-                item.getMap("cipher").put("transformation", transformation);
-                item.getMap("cipher").put("iv", iv);
+                item.withMap("cipher", cipherMap);
             }
             return item;
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException ex) {
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException ex) {
             throw new RuntimeException(ex);
         }
     }
@@ -311,18 +786,34 @@ public class DynamoDBStore implements SessionStore {
     public Item decrypt(Item item, SecretKeySpec key, String... attributes) {
         try {
             if (key != null) {
-                String transformation = (String) item.getMap("cipher").get("transformation");
-                byte[] iv = (byte[]) item.getMap("cipher").get("iv");
-                Cipher cipher = Cipher.getInstance(transformation);
-                cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
-                for (String attribute : attributes) {
-                    byte[] value = item.getBinary(attribute);
-                    item.withBinary(attribute, cipher.doFinal(value));
+                Map<String, Object> cipherMap = item.getMap("cipher");
+                String transformation = (String) cipherMap.get("transformation");
+                Cipher cipher = getCipher(transformation);
+                Map<String, Object> nonces = (Map) cipherMap.get("nonces");
+                if (nonces != null) {
+                    for (String attribute : attributes) {
+                        byte[] value = item.getBinary(attribute);
+                        if (value != null) {
+                            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, (byte[]) nonces.get(attribute)));
+                            cipher.updateAAD(attribute.getBytes(StandardCharsets.UTF_8));
+                            item.withBinary(attribute, doFinal(cipher, value));
+                        }
+                    }
+                } else {
+                    // Items written before GCM share one CBC iv across attributes
+                    byte[] iv = (byte[]) cipherMap.get("iv");
+                    cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+                    for (String attribute : attributes) {
+                        byte[] value = item.getBinary(attribute);
+                        if (value != null) {
+                            item.withBinary(attribute, doFinal(cipher, value));
+                        }
+                    }
                 }
             }
             return item;
 
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException ex) {
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException ex) {
             throw new RuntimeException(ex);
         }
     }
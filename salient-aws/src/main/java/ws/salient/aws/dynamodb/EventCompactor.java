@@ -0,0 +1,349 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.aws.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
+import com.amazonaws.services.dynamodbv2.document.RangeKeyCondition;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.document.spec.DeleteItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.salient.aws.s3.BlobStore;
+
+// Removes events already covered by a stored snapshot, optionally archiving them first, along with the
+// snapshots and spilled blobs the latest snapshot supersedes. Each session is compacted once, when its
+// latest snapshot leaves the retention period. Pending sessions are recovered from the shard session index.
+public class EventCompactor implements EventCompactorMXBean {
+
+    private static final Logger log = LoggerFactory.getLogger(EventCompactor.class);
+
+    private static final int BATCH_SIZE = 25;
+    private static final int MAX_RETRIES = 8;
+
+    private final DynamoDB dynamodb;
+    private final ScheduledExecutorService scheduler;
+    // Latest stored snapshot timestamp by sessionId, present while a compaction is scheduled
+    private final Map<String, String> pending = new ConcurrentHashMap();
+    private Duration retention = Duration.ZERO;
+    private Duration retryDelay = Duration.ofMinutes(5);
+    private int maxDeletesPerSecond = 100;
+    private BlobStore archive;
+    private BlobStore blobs;
+    private String shardId;
+    private ObjectName name;
+    private long nextDelete;
+
+    private final AtomicLong sessionsCompacted = new AtomicLong();
+    private final AtomicLong eventsDeleted = new AtomicLong();
+    private final AtomicLong eventsArchived = new AtomicLong();
+    private final AtomicLong snapshotsDeleted = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastRunMillis;
+
+    public EventCompactor(DynamoDB dynamodb, ScheduledExecutorService scheduler) {
+        this.dynamodb = dynamodb;
+        this.scheduler = scheduler;
+    }
+
+    public EventCompactor withRetention(Duration retention) {
+        this.retention = retention;
+        return this;
+    }
+
+    public EventCompactor withMaxDeletesPerSecond(int maxDeletesPerSecond) {
+        this.maxDeletesPerSecond = maxDeletesPerSecond;
+        return this;
+    }
+
+    public EventCompactor withArchive(BlobStore archive) {
+        this.archive = archive;
+        return this;
+    }
+
+    // Store holding spilled session parts, removed with the snapshots pointing at them
+    public EventCompactor withBlobStore(BlobStore blobs) {
+        this.blobs = blobs;
+        return this;
+    }
+
+    // Sessions indexed for the shard are scheduled from storage, failed compactions are retried after retryDelay
+    public EventCompactor start(String shardId, Duration retryDelay) {
+        this.shardId = shardId;
+        this.retryDelay = retryDelay;
+        try {
+            name = new ObjectName("ws.salient:type=EventCompactor,shard=" + ObjectName.quote(shardId));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException ex) {
+            log.error("Failed to register compactor metrics", ex);
+            name = null;
+        }
+        scheduler.execute(() -> {
+            try {
+                dynamodb.getTable("SalientShardSession").query(new QuerySpec().withHashKey("shardId", shardId)).forEach((item) -> {
+                    snapshotStored(item.getString("sessionId"), item.getString("lastActive"));
+                });
+                log.info("Compaction scheduled for " + pending.size() + " sessions");
+            } catch (RuntimeException ex) {
+                log.error("Failed to load sessions to compact", ex);
+            }
+        });
+        return this;
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException ex) {
+                log.error("Failed to unregister compactor metrics", ex);
+            }
+        }
+    }
+
+    // Only the first snapshot of a session schedules a compaction, later ones are picked up when it runs
+    public void snapshotStored(String sessionId, String timestamp) {
+        pending.compute(sessionId, (id, previous) -> {
+            if (previous == null) {
+                schedule(id, timestamp);
+                return timestamp;
+            }
+            return previous.compareTo(timestamp) > 0 ? previous : timestamp;
+        });
+    }
+
+    protected void schedule(String sessionId, String timestamp) {
+        long delay = Duration.between(Instant.now(), Instant.parse(timestamp).plus(retention)).toMillis();
+        schedule(sessionId, Math.max(0, delay));
+    }
+
+    private void schedule(String sessionId, long delayMillis) {
+        scheduler.schedule(() -> {
+            compact(sessionId);
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    protected void compact(String sessionId) {
+        long start = System.currentTimeMillis();
+        String snapshot = pending.get(sessionId);
+        if (snapshot == null) {
+            return;
+        }
+        String retained = DynamoDBStore.NANO_INSTANT.format(Instant.now().minus(retention));
+        String cutoff = snapshot.compareTo(retained) < 0 ? snapshot : retained;
+        try {
+            compact(sessionId, cutoff);
+            sessionsCompacted.incrementAndGet();
+        } catch (RuntimeException ex) {
+            failures.incrementAndGet();
+            log.error("Failed to compact session: " + sessionId, ex);
+            schedule(sessionId, retryDelay.toMillis());
+            return;
+        } finally {
+            lastRunMillis = System.currentTimeMillis() - start;
+        }
+        // A snapshot stored meanwhile is compacted once it leaves the retention period
+        String compacted = pending.compute(sessionId, (id, latest) -> {
+            if (latest.equals(cutoff)) {
+                return null;
+            }
+            schedule(id, latest);
+            return latest;
+        });
+        if (compacted == null) {
+            compacted(sessionId, cutoff);
+        }
+    }
+
+    protected void compact(String sessionId, String cutoff) {
+        QuerySpec query = new QuerySpec().withHashKey("sessionId", sessionId)
+                .withRangeKeyCondition(new RangeKeyCondition("timestamp").le(cutoff));
+        if (archive == null) {
+            query.withAttributesToGet("sessionId", "timestamp");
+        }
+        ItemCollection<QueryOutcome> events = dynamodb.getTable("SalientSessionEvent").query(query);
+        events.pages().forEach((page) -> {
+            List<Item> items = new ArrayList();
+            page.forEach(items::add);
+            if (!items.isEmpty()) {
+                if (archive != null) {
+                    archive(sessionId, items);
+                }
+                for (int index = 0; index < items.size(); index += BATCH_SIZE) {
+                    delete("SalientSessionEvent", items.subList(index, Math.min(items.size(), index + BATCH_SIZE)));
+                }
+                eventsDeleted.addAndGet(items.size());
+            }
+        });
+        deleteSnapshots(sessionId, cutoff);
+    }
+
+    // Snapshots before the cutoff have lost the events they replay from, the snapshot at the cutoff covers them
+    protected void deleteSnapshots(String sessionId, String cutoff) {
+        ItemCollection<QueryOutcome> snapshots = dynamodb.getTable("SalientSession").query(new QuerySpec().withHashKey("sessionId", sessionId)
+                .withRangeKeyCondition(new RangeKeyCondition("timestamp").lt(cutoff))
+                .withAttributesToGet("sessionId", "timestamp", "blob"));
+        snapshots.pages().forEach((page) -> {
+            List<Item> items = new ArrayList();
+            page.forEach(items::add);
+            // Blobs go first, a retry after a failure still finds the snapshots pointing at them
+            items.stream().filter((item) -> item.hasAttribute("blob")).forEach((item) -> {
+                deleteSpilled(item.getMap("blob"));
+            });
+            for (int index = 0; index < items.size(); index += BATCH_SIZE) {
+                delete("SalientSession", items.subList(index, Math.min(items.size(), index + BATCH_SIZE)));
+            }
+            snapshotsDeleted.addAndGet(items.size());
+        });
+    }
+
+    protected void deleteSpilled(Map<String, Object> blob) {
+        if (blobs == null) {
+            return;
+        }
+        String key = (String) blob.get("key");
+        int parts = ((Number) blob.get("parts")).intValue();
+        for (int index = 0; index < parts; index++) {
+            blobs.delete(key + "/" + index);
+        }
+    }
+
+    // Sessions inactive since their last compacted snapshot leave the shard index, unless a snapshot was stored since
+    protected void compacted(String sessionId, String snapshot) {
+        if (shardId == null) {
+            return;
+        }
+        try {
+            dynamodb.getTable("SalientShardSession").deleteItem(new DeleteItemSpec()
+                    .withPrimaryKey("shardId", shardId, "sessionId", sessionId)
+                    .withConditionExpression("lastActive = :snapshot")
+                    .withValueMap(new ValueMap().withString(":snapshot", snapshot)));
+        } catch (ConditionalCheckFailedException ex) {
+            log.info("Session active since compaction: " + sessionId);
+        }
+    }
+
+    protected void archive(String sessionId, List<Item> items) {
+        String key = sessionId + "/" + items.get(0).getString("timestamp") + "-" + items.get(items.size() - 1).getString("timestamp");
+        String lines = items.stream().map(Item::toJSON).collect(Collectors.joining("\n"));
+        archive.put(key, lines.getBytes(StandardCharsets.UTF_8));
+        eventsArchived.addAndGet(items.size());
+    }
+
+    protected void delete(String tableName, List<Item> items) {
+        throttle(items.size());
+        TableWriteItems deletes = new TableWriteItems(tableName);
+        items.forEach((item) -> {
+            deletes.addHashAndRangePrimaryKeyToDelete("sessionId", item.getString("sessionId"), "timestamp", item.getString("timestamp"));
+        });
+        BatchWriteItemOutcome outcome = dynamodb.batchWriteItem(deletes);
+        int retries = 0;
+        while (!outcome.getUnprocessedItems().isEmpty()) {
+            if (retries++ >= MAX_RETRIES) {
+                throw new RuntimeException("Unprocessed deletes: " + outcome.getUnprocessedItems().size());
+            }
+            sleep(TimeUnit.MILLISECONDS.toNanos(50L << retries));
+            outcome = dynamodb.batchWriteItemUnprocessed(outcome.getUnprocessedItems());
+        }
+    }
+
+    // Spaces out delete batches to stay under the configured throughput
+    private void throttle(int deletes) {
+        long now = System.nanoTime();
+        long wait = nextDelete - now;
+        nextDelete = Math.max(now, nextDelete) + TimeUnit.SECONDS.toNanos(deletes) / maxDeletesPerSecond;
+        if (wait > 0) {
+            sleep(wait);
+        }
+    }
+
+    private void sleep(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public int getSessionsPending() {
+        return pending.size();
+    }
+
+    @Override
+    public long getSessionsCompacted() {
+        return sessionsCompacted.get();
+    }
+
+    @Override
+    public long getEventsDeleted() {
+        return eventsDeleted.get();
+    }
+
+    @Override
+    public long getEventsArchived() {
+        return eventsArchived.get();
+    }
+
+    @Override
+    public long getSnapshotsDeleted() {
+        return snapshotsDeleted.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public long getLastRunMillis() {
+        return lastRunMillis;
+    }
+
+    @Override
+    public String getRetention() {
+        return retention.toString();
+    }
+
+    @Override
+    public int getMaxDeletesPerSecond() {
+        return maxDeletesPerSecond;
+    }
+
+}
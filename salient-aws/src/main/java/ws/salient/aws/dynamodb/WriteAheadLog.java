@@ -0,0 +1,442 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.aws.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Local log of items accepted but not yet stored, kept in memory-mapped segment files.
+// Appends are forced to disk in batches, and a segment is deleted once every item in it is stored.
+// Segments left behind by a crash are replayed into the store on the next start.
+// Only a crash and restart on the same host is covered: checkpoints still wait for the store, and once
+// the lease moves to another worker the records are redelivered from Kinesis instead.
+// Items that fail again when replayed are appended to a .dead file of the same name, so the segment can go.
+public class WriteAheadLog implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    // Record header: payload length and CRC32 of the payload
+    private static final int HEADER_SIZE = 8;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ScheduledExecutorService syncExecutor;
+    private final List<Segment> recovered = new LinkedList();
+    private boolean unsynced;
+    private Segment current;
+    private long nextSegmentId;
+
+    public WriteAheadLog(Path directory, int segmentSize, long syncMillis) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        try {
+            Files.createDirectories(directory);
+            List<Path> paths = Files.list(directory)
+                    .filter((path) -> path.getFileName().toString().endsWith(".wal"))
+                    .sorted()
+                    .collect(Collectors.toList());
+            for (Path path : paths) {
+                Segment segment = new Segment(path, readRecords(path));
+                recovered.add(segment);
+                nextSegmentId = Math.max(nextSegmentId, segmentId(path) + 1);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        syncExecutor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "salient-wal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                sync();
+            } catch (RuntimeException ex) {
+                log.error("Failed to sync write-ahead log", ex);
+            }
+        }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Writes every recovered item again, each segment is deleted once all its replayed writes complete
+    public void recover(BiFunction<String, Item, CompletableFuture<?>> replay) {
+        List<Segment> segments;
+        synchronized (this) {
+            segments = new ArrayList(recovered);
+            recovered.clear();
+        }
+        for (Segment segment : segments) {
+            log.info("Replaying write-ahead log: " + segment.path + ", items " + segment.records.size());
+            segment.pending.set(segment.records.size() + 1);
+            segment.sealed = true;
+            for (Record record : segment.records) {
+                replay.apply(record.tableName, record.item).whenComplete((result, ex) -> {
+                    if (ex == null) {
+                        segment.release();
+                    } else {
+                        log.error("Failed to replay item from " + segment.path, ex);
+                        if (deadLetter(segment, record)) {
+                            segment.release();
+                        }
+                    }
+                });
+            }
+            segment.records.clear();
+            segment.release();
+        }
+    }
+
+    public synchronized Entry append(String tableName, Item item) {
+        byte[] payload = encode(tableName, item);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        int recordSize = HEADER_SIZE + payload.length;
+        if (current == null || current.buffer.remaining() < recordSize + HEADER_SIZE) {
+            roll(recordSize + HEADER_SIZE);
+        }
+        current.buffer.putInt(payload.length);
+        current.buffer.putInt((int) crc.getValue());
+        current.buffer.put(payload);
+        current.pending.incrementAndGet();
+        unsynced = true;
+        return new Entry(current);
+    }
+
+    // Kept in the log format, so a dead letter file can be read back with the same code
+    private synchronized boolean deadLetter(Segment segment, Record record) {
+        String name = segment.path.getFileName().toString();
+        Path path = directory.resolve(name.substring(0, name.length() - ".wal".length()) + ".dead");
+        byte[] payload = encode(record.tableName, record.item);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        try (OutputStream fileOut = new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            DataOutputStream out = new DataOutputStream(fileOut);
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+            out.flush();
+            log.info("Dead letter stored: " + path);
+            return true;
+        } catch (IOException ex) {
+            log.error("Failed to store dead letter: " + path, ex);
+            return false;
+        }
+    }
+
+    // Forces appended records to disk
+    public synchronized void sync() {
+        if (!unsynced || current == null) {
+            return;
+        }
+        current.buffer.force();
+        unsynced = false;
+    }
+
+    @Override
+    public void close() {
+        syncExecutor.shutdown();
+        sync();
+        synchronized (this) {
+            if (current != null) {
+                current.sealed = true;
+                current.release();
+                current = null;
+            }
+        }
+    }
+
+    private void roll(int minimumSize) {
+        try {
+            if (current != null) {
+                current.buffer.force();
+                current.sealed = true;
+                current.release();
+            }
+            Path path = directory.resolve(String.format("%020d.wal", nextSegmentId++));
+            int size = Math.max(segmentSize, minimumSize);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                current = new Segment(path, new LinkedList());
+                current.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                // Held until the segment is sealed, so an active segment is never deleted
+                current.pending.set(1);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static long segmentId(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - ".wal".length()));
+    }
+
+    private static List<Record> readRecords(Path path) throws IOException {
+        List<Record> records = new LinkedList();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    // Torn write at the tail of the log
+                    log.warn("Corrupt record in write-ahead log: " + path);
+                    break;
+                }
+                records.add(decode(payload));
+            }
+        }
+        return records;
+    }
+
+    private static byte[] encode(String tableName, Item item) {
+        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream(); DataOutputStream out = new DataOutputStream(bytes)) {
+            writeString(out, tableName);
+            writeMap(out, ItemUtils.toAttributeValues(item));
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static Record decode(byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            String tableName = readString(in);
+            return new Record(tableName, ItemUtils.toItem(readMap(in)));
+        }
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, AttributeValue> values) throws IOException {
+        out.writeInt(values.size());
+        for (Map.Entry<String, AttributeValue> entry : values.entrySet()) {
+            writeString(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private static Map<String, AttributeValue> readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, AttributeValue> values = new LinkedHashMap();
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            values.put(key, readValue(in));
+        }
+        return values;
+    }
+
+    private static void writeValue(DataOutputStream out, AttributeValue value) throws IOException {
+        if (value.getS() != null) {
+            out.writeByte('S');
+            writeString(out, value.getS());
+        } else if (value.getN() != null) {
+            out.writeByte('N');
+            writeString(out, value.getN());
+        } else if (value.getB() != null) {
+            out.writeByte('B');
+            writeBytes(out, value.getB());
+        } else if (value.getBOOL() != null) {
+            out.writeByte('Z');
+            out.writeBoolean(value.getBOOL());
+        } else if (value.getM() != null) {
+            out.writeByte('M');
+            writeMap(out, value.getM());
+        } else if (value.getL() != null) {
+            out.writeByte('L');
+            out.writeInt(value.getL().size());
+            for (AttributeValue element : value.getL()) {
+                writeValue(out, element);
+            }
+        } else if (value.getSS() != null) {
+            out.writeByte('s');
+            out.writeInt(value.getSS().size());
+            for (String element : value.getSS()) {
+                writeString(out, element);
+            }
+        } else if (value.getNS() != null) {
+            out.writeByte('n');
+            out.writeInt(value.getNS().size());
+            for (String element : value.getNS()) {
+                writeString(out, element);
+            }
+        } else if (value.getBS() != null) {
+            out.writeByte('b');
+            out.writeInt(value.getBS().size());
+            for (ByteBuffer element : value.getBS()) {
+                writeBytes(out, element);
+            }
+        } else {
+            out.writeByte('0');
+        }
+    }
+
+    private static AttributeValue readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case 'S':
+                return new AttributeValue().withS(readString(in));
+            case 'N':
+                return new AttributeValue().withN(readString(in));
+            case 'B':
+                return new AttributeValue().withB(ByteBuffer.wrap(readBytes(in)));
+            case 'Z':
+                return new AttributeValue().withBOOL(in.readBoolean());
+            case 'M':
+                return new AttributeValue().withM(readMap(in));
+            case 'L': {
+                int size = in.readInt();
+                List<AttributeValue> elements = new ArrayList(size);
+                for (int i = 0; i < size; i++) {
+                    elements.add(readValue(in));
+                }
+                return new AttributeValue().withL(elements);
+            }
+            case 's':
+            case 'n': {
+                int size = in.readInt();
+                List<String> elements = new ArrayList(size);
+                for (int i = 0; i < size; i++) {
+                    elements.add(readString(in));
+                }
+                return type == 's' ? new AttributeValue().withSS(elements) : new AttributeValue().withNS(elements);
+            }
+            case 'b': {
+                int size = in.readInt();
+                List<ByteBuffer> elements = new ArrayList(size);
+                for (int i = 0; i < size; i++) {
+                    elements.add(ByteBuffer.wrap(readBytes(in)));
+                }
+                return new AttributeValue().withBS(elements);
+            }
+            default:
+                return new AttributeValue().withNULL(Boolean.TRUE);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, ByteBuffer value) throws IOException {
+        ByteBuffer buffer = value.duplicate();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    public static class Entry {
+
+        private final Segment segment;
+
+        private Entry(Segment segment) {
+            this.segment = segment;
+        }
+
+        // The item is stored, its segment may be deleted once every entry in it is released
+        public void release() {
+            segment.release();
+        }
+
+    }
+
+    private static class Segment {
+
+        private final Path path;
+        private final List<Record> records;
+        private final AtomicInteger pending = new AtomicInteger();
+        private MappedByteBuffer buffer;
+        private volatile boolean sealed;
+
+        private Segment(Path path, List<Record> records) {
+            this.path = path;
+            this.records = records;
+        }
+
+        private void release() {
+            if (pending.decrementAndGet() == 0 && sealed) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException ex) {
+                    log.error("Failed to delete write-ahead log segment: " + path, ex);
+                }
+            }
+        }
+
+    }
+
+    private static class Record {
+
+        private final String tableName;
+        private final Item item;
+
+        private Record(String tableName, Item item) {
+            this.tableName = tableName;
+            this.item = item;
+        }
+
+    }
+
+}
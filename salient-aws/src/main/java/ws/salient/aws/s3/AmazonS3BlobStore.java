@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.aws.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.commons.io.IOUtils;
+
+public class AmazonS3BlobStore implements BlobStore {
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String prefix;
+
+    public AmazonS3BlobStore(AmazonS3 s3, String bucket, String prefix) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.prefix = prefix;
+    }
+
+    @Override
+    public void put(String key, byte[] value) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(value.length);
+        s3.putObject(bucket, getKey(key), new ByteArrayInputStream(value), metadata);
+    }
+
+    @Override
+    public byte[] get(String key) {
+        try (S3Object object = s3.getObject(bucket, getKey(key)); InputStream in = object.getObjectContent()) {
+            return IOUtils.toByteArray(in);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        s3.deleteObject(bucket, getKey(key));
+    }
+
+    private String getKey(String key) {
+        return new StringBuilder().append(prefix).append("/").append(key).toString();
+    }
+
+}
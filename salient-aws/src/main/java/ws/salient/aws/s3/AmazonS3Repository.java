@@ -19,17 +19,39 @@ package ws.salient.aws.s3;
 import com.amazonaws.services.s3.AmazonS3;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import org.apache.maven.repository.internal.MavenRepositorySystemUtils;
 import org.apache.maven.wagon.Wagon;
 import org.drools.compiler.kie.builder.impl.AbstractKieModule;
+import org.drools.compiler.kie.builder.impl.InternalKieModule;
 import org.drools.compiler.kie.builder.impl.KieRepositoryImpl;
 import org.drools.compiler.kproject.ReleaseIdImpl;
+import org.eclipse.aether.DefaultRepositorySystemSession;
 import org.eclipse.aether.artifact.Artifact;
 import org.eclipse.aether.artifact.DefaultArtifact;
 import org.eclipse.aether.collection.CollectRequest;
@@ -53,7 +75,9 @@ import org.eclipse.aether.transport.wagon.WagonTransporterFactory;
 import org.eclipse.aether.util.artifact.SubArtifact;
 import org.kie.api.KieBase;
 import org.kie.api.KieServices;
+import org.kie.api.builder.Message;
 import org.kie.api.builder.ReleaseId;
+import org.kie.api.builder.Results;
 import org.kie.api.runtime.KieContainer;
 import org.kie.scanner.Aether;
 import org.kie.scanner.MavenRepository;
@@ -62,6 +86,7 @@ import org.nustaq.serialization.FSTConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ws.salient.aws.databind.AmazonModule;
+import ws.salient.knowledge.KieBaseCache;
 import ws.salient.knowledge.KnowledgeBase;
 import ws.salient.knowledge.KnowledgeRepository;
 
@@ -71,7 +96,16 @@ public class AmazonS3Repository implements KnowledgeRepository {
     private final KieServices kie;
     private final Aether aether;
     private Set<RemoteRepository> repositories;
-    private final ConcurrentMap<String, KnowledgeBase> knowledgeBases;
+    private final ConcurrentMap<String, CompletableFuture<KnowledgeBase>> knowledgeBases;
+    private final ConcurrentMap<String, Long> failures;
+    private ExecutorService buildExecutor;
+    private long buildTimeout = Duration.ofMinutes(5).toMillis();
+    private long failureTimeToLive = Duration.ofSeconds(30).toMillis();
+    private KieBaseCache kieBaseCache;
+    private boolean precompiled;
+    private boolean inPlaceUpgrade;
+    private Supplier<Set<String>> retained = Collections::emptySet;
+    private final Object upgradeLock = new Object();
 
     public AmazonS3Repository() {
         this(Aether.getAether());
@@ -81,11 +115,63 @@ public class AmazonS3Repository implements KnowledgeRepository {
         this.aether = aether;
         kie = KieServices.Factory.get();
         knowledgeBases = new ConcurrentHashMap();
+        failures = new ConcurrentHashMap();
         repositories = new LinkedHashSet();
+        buildExecutor = Executors.newFixedThreadPool(2);
+    }
+
+    // Knowledge bases are resolved and compiled on this executor, never on the calling thread
+    public AmazonS3Repository withBuildExecutor(ExecutorService buildExecutor) {
+        this.buildExecutor.shutdown();
+        this.buildExecutor = buildExecutor;
+        return this;
+    }
+
+    // Callers give up waiting after buildTimeout, the build itself carries on and stays shared
+    public AmazonS3Repository withBuildTimeout(Duration buildTimeout) {
+        this.buildTimeout = buildTimeout.toMillis();
+        return this;
+    }
+
+    // Compiled KieBases are loaded from the cache when their module is unchanged
+    public AmazonS3Repository withKieBaseCache(KieBaseCache kieBaseCache) {
+        this.kieBaseCache = kieBaseCache;
+        return this;
+    }
+
+    // Resolve KieBases precompiled at deploy time before compiling them locally,
+    // off by default as every build otherwise pays a lookup for an artifact most releases do not publish
+    public AmazonS3Repository withPrecompiled(boolean precompiled) {
+        this.precompiled = precompiled;
+        return this;
+    }
+
+    // A new version whose classes are unchanged updates the loaded container of the previous version,
+    // resident sessions keep their working memory instead of being marshalled across
+    public AmazonS3Repository withInPlaceUpgrade(boolean inPlaceUpgrade) {
+        this.inPlaceUpgrade = inPlaceUpgrade;
+        return this;
+    }
+
+    // Knowledge base ids still pinned by an alias, their version is never upgraded in place
+    public AmazonS3Repository withRetained(Supplier<Set<String>> retained) {
+        this.retained = retained;
+        return this;
+    }
+
+    // A failed build is returned to callers for failureTimeToLive before it is attempted again
+    public AmazonS3Repository withFailureTimeToLive(Duration failureTimeToLive) {
+        this.failureTimeToLive = failureTimeToLive.toMillis();
+        return this;
     }
 
     public AmazonS3Repository(AmazonS3 s3) {
-        this(initAether(s3));
+        this(initAether(s3, null));
+    }
+
+    // Artifacts fetched from S3 are also kept in artifactCache, validated by ETag
+    public AmazonS3Repository(AmazonS3 s3, Path artifactCache) {
+        this(initAether(s3, artifactCache));
     }
     
     public void setRemoteRepositories(Set<RemoteRepository> remoteRepositories) {
@@ -100,6 +186,11 @@ public class AmazonS3Repository implements KnowledgeRepository {
     }
 
     public void putKieModule(AbstractKieModule kmodule, RemoteRepository repository) {
+        putKieModule(kmodule, repository, false);
+    }
+
+    // With precompile, each KieBase is compiled once here and published as a "kbase" artifact classified by its name
+    public void putKieModule(AbstractKieModule kmodule, RemoteRepository repository, boolean precompile) {
 
         ReleaseId releaseId = kmodule.getReleaseId();
 
@@ -120,6 +211,26 @@ public class AmazonS3Repository implements KnowledgeRepository {
                 .addArtifact(pomArtifact)
                 .setRepository(repository);
 
+        if (precompile) {
+            kie.getRepository().addKieModule(kmodule);
+            KieContainer container = kie.newKieContainer(releaseId);
+            // Same bytes the jar artifact is resolved with, so the checksum matches at load time
+            String checksum = KieBaseCache.checksum(jar.toPath());
+            if (checksum == null) {
+                throw new RuntimeException("Unable to checksum module " + releaseId);
+            }
+            for (String name : kmodule.getKieModuleModel().getKieBaseModels().keySet()) {
+                File kbase = new File(System.getProperty("java.io.tmpdir"), toFileName(releaseId, null) + "-" + name + ".kbase");
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(kbase))) {
+                    KieBaseCache.write(out, checksum, container.getKieBase(name));
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+                deployRequest.addArtifact(new SubArtifact(jarArtifact, name, "kbase").setFile(kbase));
+            }
+            container.dispose();
+        }
+
         try {
             Aether.getAether().getSystem().deploy(Aether.getAether().getSession(), deployRequest);
         } catch (DeploymentException e) {
@@ -127,9 +238,15 @@ public class AmazonS3Repository implements KnowledgeRepository {
         }
     }
 
-    private static Aether initAether(AmazonS3 s3) {
+    private static Aether initAether(AmazonS3 s3, Path artifactCache) {
         Aether aether = Aether.getAether();
         DefaultRepositorySystem system = (DefaultRepositorySystem) aether.getSystem();
+        if (aether.getSession() instanceof DefaultRepositorySystemSession) {
+            // Artifacts of a resolved tree are downloaded as one batch, spread it over more connector threads
+            DefaultRepositorySystemSession session = (DefaultRepositorySystemSession) aether.getSession();
+            session.setConfigProperty("aether.connector.basic.threads", Integer.getInteger("salient.artifacts.threads", 16));
+            session.setConfigProperty("aether.metadataResolver.threads", Integer.getInteger("salient.artifacts.threads", 16));
+        }
         DefaultServiceLocator locator = MavenRepositorySystemUtils.newServiceLocator();
         locator.addService(RepositoryConnectorFactory.class, BasicRepositoryConnectorFactory.class);
         locator.addService(TransporterFactory.class, FileTransporterFactory.class);
@@ -139,7 +256,7 @@ public class AmazonS3Repository implements KnowledgeRepository {
             @Override
             public Wagon lookup(String protocol) throws Exception {
                 if ("s3".equals(protocol)) {
-                    return new AmazonS3Wagon(s3);
+                    return new AmazonS3Wagon(s3).withCache(artifactCache);
                 }
                 return null;
             }
@@ -170,7 +287,8 @@ public class AmazonS3Repository implements KnowledgeRepository {
         }
     }
     
-    public void resolveArtifact(String dependency, Collection<RemoteRepository> repositories) {
+    // Returns the local file of the artifact, null when it cannot be resolved
+    public File resolveArtifact(String dependency, Collection<RemoteRepository> repositories) {
         Artifact artifact = new DefaultArtifact(dependency);
         ArtifactRequest artifactRequest = new ArtifactRequest();
         artifactRequest.setArtifact(artifact);
@@ -178,28 +296,226 @@ public class AmazonS3Repository implements KnowledgeRepository {
             artifactRequest.addRepository(repo);
         });
         try {
-            aether.getSystem().resolveArtifact(aether.getSession(), artifactRequest);
+            return aether.getSystem().resolveArtifact(aether.getSession(), artifactRequest).getArtifact().getFile();
         } catch (ArtifactResolutionException e) {
             log.warn("Unable to resolve artifact: " + dependency);
+            return null;
         }
     }
     
     @Override
     public KnowledgeBase getKnowledgeBase(String knowledgeBaseId) {
-        KnowledgeBase knowledgeBase = knowledgeBases.computeIfAbsent(knowledgeBaseId, (id) -> {
-            ReleaseId releaseId = KnowledgeRepository.getReleaseId(knowledgeBaseId);
-            AbstractKieModule module = getKieModule(releaseId, repositories);
-            KieContainer container = kie.newKieContainer(releaseId);
-            KieBase base = container.getKieBase(KnowledgeRepository.getKnowledgeBaseName(knowledgeBaseId));
-            FSTConfiguration config = FSTConfiguration.createDefaultConfiguration();
-            config.setShareReferences(true);
-            config.setForceSerializable(false);
-            config.setClassLoader(container.getClassLoader());
-            ObjectMapper json = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-            json.registerModules(ObjectMapper.findModules(container.getClassLoader()));
-            json.registerModules(new AmazonModule());
-            return new KnowledgeBase(KnowledgeRepository.getKnowledgeBaseName(knowledgeBaseId)).withBase(base).withContainer(container).withJson(json).withModule(module).withReleaseId(releaseId).withSerializer(config);
+        try {
+            while (true) {
+                CompletableFuture<KnowledgeBase> future = getKnowledgeBaseAsync(knowledgeBaseId);
+                KnowledgeBase knowledgeBase = future.get(buildTimeout, TimeUnit.MILLISECONDS);
+                // Touched under the eviction lock, so it is not disposed for at least the grace period
+                if (knowledgeBase.touch()) {
+                    return knowledgeBase;
+                }
+                knowledgeBases.remove(knowledgeBaseId, future);
+            }
+        } catch (TimeoutException ex) {
+            throw new RuntimeException("Timed out loading knowledge base " + knowledgeBaseId, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // Concurrent callers share one in-flight build per id
+    @Override
+    public CompletableFuture<KnowledgeBase> getKnowledgeBaseAsync(String knowledgeBaseId) {
+        while (true) {
+            CompletableFuture<KnowledgeBase> knowledgeBase = knowledgeBases.get(knowledgeBaseId);
+            if (knowledgeBase != null) {
+                if (knowledgeBase.isCompletedExceptionally()
+                        && failures.getOrDefault(knowledgeBaseId, Long.MAX_VALUE) <= System.currentTimeMillis()) {
+                    // Failure has expired, retry the build
+                    if (knowledgeBases.remove(knowledgeBaseId, knowledgeBase)) {
+                        failures.remove(knowledgeBaseId);
+                    }
+                    continue;
+                }
+                return knowledgeBase;
+            }
+            CompletableFuture<KnowledgeBase> building = new CompletableFuture();
+            if (knowledgeBases.putIfAbsent(knowledgeBaseId, building) == null) {
+                buildExecutor.execute(() -> {
+                    try {
+                        building.complete(build(knowledgeBaseId));
+                    } catch (Throwable ex) {
+                        log.error("Failed to load knowledge base " + knowledgeBaseId, ex);
+                        failures.put(knowledgeBaseId, System.currentTimeMillis() + failureTimeToLive);
+                        building.completeExceptionally(ex);
+                    }
+                });
+                return building;
+            }
+        }
+    }
+
+    private KnowledgeBase build(String knowledgeBaseId) {
+        ReleaseId releaseId = KnowledgeRepository.getReleaseId(knowledgeBaseId);
+        AbstractKieModule module = getKieModule(releaseId, repositories);
+        if (inPlaceUpgrade) {
+            // Looked up once per build, not per candidate and not under the upgrade lock
+            Set<String> retainedIds = retained.get();
+            KnowledgeBase upgraded = upgrade(knowledgeBaseId, releaseId, module, retainedIds);
+            if (upgraded != null) {
+                return upgraded;
+            }
+        }
+        KieContainer container = kie.newKieContainer(releaseId);
+        String name = KnowledgeRepository.getKnowledgeBaseName(knowledgeBaseId);
+        KieBase base = null;
+        String checksum = null;
+        if (kieBaseCache != null || precompiled) {
+            // The jar is already in the local repository once its dependencies are resolved
+            File jar = resolveArtifact(releaseId.toExternalForm(), repositories);
+            if (jar != null) {
+                checksum = KieBaseCache.checksum(jar.toPath());
+            }
+        }
+        if (kieBaseCache != null) {
+            base = kieBaseCache.load(releaseId, name, checksum, container.getClassLoader());
+        }
+        if (base == null) {
+            if (precompiled) {
+                base = getPrecompiledKieBase(releaseId, name, checksum, container.getClassLoader());
+            }
+            if (base == null) {
+                base = container.getKieBase(name);
+            }
+            if (kieBaseCache != null) {
+                kieBaseCache.store(releaseId, name, checksum, base);
+            }
+        }
+        FSTConfiguration config = FSTConfiguration.createDefaultConfiguration();
+        config.setShareReferences(true);
+        config.setForceSerializable(false);
+        config.setClassLoader(container.getClassLoader());
+        ObjectMapper json = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        json.registerModules(ObjectMapper.findModules(container.getClassLoader()));
+        json.registerModules(new AmazonModule());
+        return new KnowledgeBase(KnowledgeRepository.getKnowledgeBaseName(knowledgeBaseId)).withBase(base).withContainer(container).withJson(json).withModule(module).withReleaseId(releaseId).withSerializer(config);
+    }
+
+    @Override
+    public void evict(Set<String> retained, Duration gracePeriod) {
+        long idleSince = System.currentTimeMillis() - gracePeriod.toMillis();
+        knowledgeBases.forEach((knowledgeBaseId, future) -> {
+            if (retained.contains(knowledgeBaseId) || !future.isDone() || future.isCompletedExceptionally()) {
+                return;
+            }
+            KnowledgeBase knowledgeBase = future.join();
+            if (knowledgeBase.disposeIfIdle(idleSince)) {
+                knowledgeBases.remove(knowledgeBaseId, future);
+                log.info("Disposed knowledge base " + knowledgeBaseId);
+                ReleaseId releaseId = knowledgeBase.getReleaseId();
+                // Other knowledge bases of the same release still need the module
+                boolean shared = knowledgeBases.keySet().stream().anyMatch((id) -> {
+                    return releaseId.equals(KnowledgeRepository.getReleaseId(id));
+                });
+                if (!shared) {
+                    kie.getRepository().removeKieModule(releaseId);
+                }
+            }
+        });
+    }
+
+    private KnowledgeBase upgrade(String knowledgeBaseId, ReleaseId releaseId, AbstractKieModule module, Set<String> retainedIds) {
+        String name = KnowledgeRepository.getKnowledgeBaseName(knowledgeBaseId);
+        synchronized (upgradeLock) {
+            for (Map.Entry<String, CompletableFuture<KnowledgeBase>> entry : knowledgeBases.entrySet()) {
+                String previousId = entry.getKey();
+                CompletableFuture<KnowledgeBase> future = entry.getValue();
+                if (previousId.equals(knowledgeBaseId) || !future.isDone() || future.isCompletedExceptionally()) {
+                    continue;
+                }
+                ReleaseId previous = KnowledgeRepository.getReleaseId(previousId);
+                if (!previous.getGroupId().equals(releaseId.getGroupId()) || !previous.getArtifactId().equals(releaseId.getArtifactId())
+                        || !KnowledgeRepository.getKnowledgeBaseName(previousId).equals(name)) {
+                    continue;
+                }
+                if (retainedIds.contains(previousId)) {
+                    log.info("Retained by an alias, not upgrading " + previousId + " in place");
+                    return null;
+                }
+                KnowledgeBase current = future.join();
+                // A cached or precompiled base is not the container's own, updating the container would not reach it
+                if (current.getBase() != current.getContainer().getKieBase(name)) {
+                    return null;
+                }
+                if (!hasSameClasses(current.getModule(), module)) {
+                    log.info("Classes changed, not upgrading " + previousId + " in place");
+                    return null;
+                }
+                // The container is shared by every knowledge base of the previous release
+                boolean shared = knowledgeBases.keySet().stream().anyMatch((id) -> {
+                    return !id.equals(previousId) && previous.equals(KnowledgeRepository.getReleaseId(id));
+                });
+                if (shared) {
+                    return null;
+                }
+                // Sessions of the previous version fire rules on the same KieBase, they wait while it is updated
+                Results results = current.update(() -> current.getContainer().updateToVersion(releaseId));
+                if (results.hasMessages(Message.Level.ERROR)) {
+                    log.warn("Unable to upgrade " + previousId + " in place: " + results.getMessages(Message.Level.ERROR));
+                    return null;
+                }
+                knowledgeBases.remove(previousId, future);
+                log.info("Upgraded " + previousId + " in place to " + knowledgeBaseId);
+                return current.upgradeTo(releaseId, module);
+            }
+            return null;
+        }
+    }
+
+    private boolean hasSameClasses(InternalKieModule previous, InternalKieModule module) {
+        if (previous == null || module == null) {
+            return false;
+        }
+        Set<String> classes = previous.getFileNames().stream().filter((file) -> file.endsWith(".class")).collect(Collectors.toSet());
+        Set<String> moduleClasses = module.getFileNames().stream().filter((file) -> file.endsWith(".class")).collect(Collectors.toSet());
+        return classes.equals(moduleClasses) && classes.stream().allMatch((file) -> {
+            return Arrays.equals(previous.getBytes(file), module.getBytes(file));
         });
-        return knowledgeBase;
+    }
+
+    private KieBase getPrecompiledKieBase(ReleaseId releaseId, String name, String checksum, ClassLoader classLoader) {
+        if (checksum == null) {
+            return null;
+        }
+        ArtifactRequest artifactRequest = new ArtifactRequest();
+        artifactRequest.setArtifact(new DefaultArtifact(releaseId.getGroupId(), releaseId.getArtifactId(), name, "kbase", releaseId.getVersion()));
+        repositories.forEach(artifactRequest::addRepository);
+        try {
+            File file = aether.getSystem().resolveArtifact(aether.getSession(), artifactRequest).getArtifact().getFile();
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                KieBase base = KieBaseCache.read(in, checksum, classLoader);
+                if (base == null) {
+                    log.warn("Precompiled knowledge base does not match module: " + releaseId + " " + name);
+                } else {
+                    log.info("Loaded precompiled knowledge base: " + releaseId + " " + name);
+                }
+                return base;
+            }
+        } catch (ArtifactResolutionException ex) {
+            log.info("No precompiled knowledge base: " + releaseId + " " + name);
+            return null;
+        } catch (IOException | ClassNotFoundException | RuntimeException ex) {
+            log.warn("Unable to load precompiled knowledge base: " + releaseId + " " + name, ex);
+            return null;
+        }
+    }
+
+    public void shutdown() {
+        buildExecutor.shutdown();
     }
 }
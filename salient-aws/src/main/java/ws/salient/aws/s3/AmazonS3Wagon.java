@@ -19,13 +19,28 @@ package ws.salient.aws.s3;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.apache.commons.io.IOUtils;
 import org.apache.maven.wagon.AbstractWagon;
 import org.apache.maven.wagon.ConnectionException;
@@ -39,19 +54,57 @@ import org.slf4j.LoggerFactory;
 public final class AmazonS3Wagon extends AbstractWagon {
 
     private final Logger log = LoggerFactory.getLogger(AmazonS3Wagon.class);
-    
+
     private final AmazonS3 s3;
+    private Path cache;
+    private long partSize = 8 * 1024 * 1024;
+    private long rangeThreshold = 16 * 1024 * 1024;
+    private int partThreads = 8;
+    private ExecutorService partExecutor;
+    private ExecutorService ownedExecutor;
 
     public AmazonS3Wagon(AmazonS3 s3) {
         this.s3 = s3;
     }
 
+    // Downloads are kept under cache/bucket/key and reused while the object's ETag is unchanged
+    public AmazonS3Wagon withCache(Path cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    // Objects of rangeThreshold bytes or more are fetched as concurrent ranged GETs of partSize bytes
+    public AmazonS3Wagon withRangedGets(long partSize, long rangeThreshold, ExecutorService partExecutor) {
+        this.partSize = partSize;
+        this.rangeThreshold = rangeThreshold;
+        this.partExecutor = partExecutor;
+        return this;
+    }
+
+    // Size of the pool a wagon creates for itself when no executor is given
+    public AmazonS3Wagon withPartThreads(int partThreads) {
+        this.partThreads = partThreads;
+        return this;
+    }
+
     @Override
     protected void openConnectionInternal() throws ConnectionException, AuthenticationException {
+        if (partExecutor == null && ownedExecutor == null) {
+            ownedExecutor = Executors.newFixedThreadPool(partThreads, (runnable) -> {
+                Thread thread = new Thread(runnable, "s3-wagon-parts");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
     }
 
     @Override
     protected void closeConnection() throws ConnectionException {
+        // An injected executor stays owned by the caller
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+            ownedExecutor = null;
+        }
     }
 
     @Override
@@ -65,25 +118,58 @@ public final class AmazonS3Wagon extends AbstractWagon {
     }
 
     private boolean getIfModifiedSince(String path, File file, Date lastModified) throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
-        GetObjectRequest getObject = new GetObjectRequest(repository.getHost(), getKey(path));
+        String bucket = repository.getHost();
+        String key = getKey(path);
         try {
-            if (lastModified != null) {
-                getObject.setModifiedSinceConstraint(lastModified);
+            ObjectMetadata metadata = s3.getObjectMetadata(bucket, key);
+            if (lastModified != null && metadata.getLastModified() != null && !metadata.getLastModified().after(lastModified)) {
+                return false;
+            }
+            String etag = metadata.getETag();
+            long length = metadata.getContentLength();
+
+            Path cached = cache != null ? cache.resolve(bucket).resolve(key) : null;
+            Path cachedETag = cached != null ? cached.resolveSibling(cached.getFileName() + ".etag") : null;
+            if (cached != null && etag != null && Files.isRegularFile(cached) && Files.isRegularFile(cachedETag)
+                    && etag.equals(new String(Files.readAllBytes(cachedETag), StandardCharsets.UTF_8))) {
+                log.info(file.getAbsolutePath() + ": " + length + " cached");
+                Files.copy(cached, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return true;
             }
-            S3Object s3Object = s3.getObject(getObject);
-            
-            if (s3Object != null) {
-                log.info(file.getAbsolutePath() + ": " + String.valueOf(s3Object.getObjectMetadata().getContentLength()));
+
+            log.info(file.getAbsolutePath() + ": " + length);
+            if (length >= rangeThreshold) {
+                getRanges(bucket, key, etag, length, file);
+            } else {
+                GetObjectRequest getObject = new GetObjectRequest(bucket, key);
+                if (etag != null) {
+                    getObject.setMatchingETagConstraints(Collections.singletonList(etag));
+                }
+                S3Object s3Object = s3.getObject(getObject);
+                if (s3Object == null) {
+                    throw new TransferFailedException("s3://" + bucket + "/" + key + " changed during download");
+                }
                 try (InputStream in = s3Object.getObjectContent(); FileOutputStream fileOut = new FileOutputStream(file)) {
                     IOUtils.copy(in, fileOut);
                 }
-                return true;
             }
-            return false;
+
+            if (cached != null && etag != null) {
+                // Copied aside and moved into place, concurrent wagons may fill the same entry
+                Files.createDirectories(cached.getParent());
+                Path temp = Files.createTempFile(cached.getParent(), cached.getFileName().toString(), ".tmp");
+                Files.copy(file.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Path tempETag = Files.createTempFile(cached.getParent(), cached.getFileName().toString(), ".tmp");
+                Files.write(tempETag, etag.getBytes(StandardCharsets.UTF_8));
+                Files.move(tempETag, cachedETag, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return true;
         } catch (AmazonS3Exception ex) {
-            if (ex.getErrorCode().equals("NoSuchKey") || ex.getErrorCode().equals("AccessDenied")) {
-                log.warn("s3://" + getObject.getBucketName() + "/" + getObject.getKey(), ex);
-                throw new ResourceDoesNotExistException("s3://" + getObject.getBucketName() + "/" + getObject.getKey(), ex);
+            if ("NoSuchKey".equals(ex.getErrorCode()) || "AccessDenied".equals(ex.getErrorCode())
+                    || ex.getStatusCode() == 404 || ex.getStatusCode() == 403) {
+                log.warn("s3://" + bucket + "/" + key, ex);
+                throw new ResourceDoesNotExistException("s3://" + bucket + "/" + key, ex);
             }
             throw new TransferFailedException(ex.getMessage(), ex);
         } catch (IOException ex) {
@@ -91,6 +177,47 @@ public final class AmazonS3Wagon extends AbstractWagon {
         }
     }
 
+    // Each part is written at its offset, every range must match the ETag seen before the download
+    private void getRanges(String bucket, String key, String etag, long length, File file) throws IOException, TransferFailedException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ExecutorService executor = partExecutor != null ? partExecutor : ownedExecutor;
+            List<CompletableFuture<Void>> parts = new ArrayList();
+            for (long start = 0; start < length; start += partSize) {
+                long first = start;
+                long last = Math.min(start + partSize, length) - 1;
+                parts.add(CompletableFuture.runAsync(() -> {
+                    GetObjectRequest getObject = new GetObjectRequest(bucket, key).withRange(first, last);
+                    if (etag != null) {
+                        getObject.setMatchingETagConstraints(Collections.singletonList(etag));
+                    }
+                    S3Object s3Object = s3.getObject(getObject);
+                    if (s3Object == null) {
+                        throw new IllegalStateException("s3://" + bucket + "/" + key + " changed during download");
+                    }
+                    try (InputStream in = s3Object.getObjectContent()) {
+                        byte[] buffer = new byte[64 * 1024];
+                        long position = first;
+                        int read;
+                        while ((read = in.read(buffer)) >= 0) {
+                            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+                            while (bytes.hasRemaining()) {
+                                position += channel.write(bytes, position);
+                            }
+                        }
+                    } catch (IOException ex) {
+                        throw new CompletionException(ex);
+                    }
+                }, executor));
+            }
+            CompletableFuture.allOf(parts.toArray(new CompletableFuture[parts.size()])).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof AmazonS3Exception) {
+                throw (AmazonS3Exception) ex.getCause();
+            }
+            throw new TransferFailedException(ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+
     @Override
     public void put(File file, String path) throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
         try {
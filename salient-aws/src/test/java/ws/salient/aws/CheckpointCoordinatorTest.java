@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.aws;
+
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import java.util.concurrent.CompletableFuture;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class CheckpointCoordinatorTest {
+
+    @Test
+    public void checkpointFlushedBatches() throws Exception {
+        CheckpointCoordinator checkpoints = new CheckpointCoordinator(0);
+        CompletableFuture<Void> second = new CompletableFuture();
+        checkpoints.track("1", CompletableFuture.completedFuture(null));
+        checkpoints.track("2", second);
+        assertEquals("1", checkpoints.getFlushedSequenceNumber());
+
+        second.complete(null);
+        IRecordProcessorCheckpointer checkpointer = mock(IRecordProcessorCheckpointer.class);
+        checkpoints.checkpoint(checkpointer);
+        verify(checkpointer).checkpoint("2");
+    }
+
+    @Test
+    public void passDeadLetteredBatch() throws Exception {
+        CheckpointCoordinator checkpoints = new CheckpointCoordinator(0);
+        CompletableFuture<Void> failed = new CompletableFuture();
+        CompletableFuture<Void> fourth = new CompletableFuture();
+        checkpoints.track("1", CompletableFuture.completedFuture(null));
+        checkpoints.track("2", failed);
+        checkpoints.track("3", CompletableFuture.completedFuture(null));
+        checkpoints.track("4", fourth);
+        assertEquals("1", checkpoints.getFlushedSequenceNumber());
+
+        // The writer has given up on the batch and dead-lettered its failed items
+        failed.completeExceptionally(new RuntimeException("Rejected"));
+        IRecordProcessorCheckpointer checkpointer = mock(IRecordProcessorCheckpointer.class);
+        checkpoints.checkpoint(checkpointer);
+        verify(checkpointer).checkpoint("3");
+
+        fourth.complete(null);
+        checkpoints.checkpoint(checkpointer);
+        verify(checkpointer).checkpoint("4");
+        assertEquals(0, checkpoints.getPendingBatches());
+    }
+
+    @Test
+    public void noCheckpointBeforeFirstFlush() {
+        CheckpointCoordinator checkpoints = new CheckpointCoordinator(0);
+        checkpoints.track("1", new CompletableFuture());
+        assertNull(checkpoints.getFlushedSequenceNumber());
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.aws.dynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.mockito.Mockito.anyVararg;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import ws.salient.aws.s3.FileBlobStore;
+
+public class BatchWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    DynamoDB dynamodb;
+    // Items of each BatchWriteItem request
+    List<List<Item>> requests;
+    int failingRequests;
+
+    @Before
+    public void before() {
+        requests = new ArrayList();
+        failingRequests = 0;
+        BatchWriteItemOutcome outcome = mock(BatchWriteItemOutcome.class);
+        when(outcome.getUnprocessedItems()).thenReturn(Collections.emptyMap());
+        dynamodb = mock(DynamoDB.class);
+        when(dynamodb.batchWriteItem((TableWriteItems[]) anyVararg())).thenAnswer((invocation) -> {
+            if (failingRequests > 0) {
+                failingRequests--;
+                throw new AmazonClientException("Connection reset");
+            }
+            List<Item> items = new ArrayList();
+            for (Object argument : invocation.getArguments()) {
+                List<TableWriteItems> tables = argument instanceof TableWriteItems[] ? Arrays.asList((TableWriteItems[]) argument) : Arrays.asList((TableWriteItems) argument);
+                tables.forEach((table) -> {
+                    items.addAll(table.getItemsToPut());
+                });
+            }
+            requests.add(items);
+            return outcome;
+        });
+    }
+
+    @Test
+    public void chunkRequests() {
+        // Without a flush executor, writes are only sent when drained
+        BatchWriter writer = new BatchWriter(dynamodb, null);
+        for (int index = 0; index < 60; index++) {
+            writer.write(new BatchWriter.Write("SalientSessionEvent", item("session" + index, "2016-01-01T00:00:00Z")));
+        }
+        writer.drain();
+
+        assertEquals(3, requests.size());
+        assertEquals(25, requests.get(0).size());
+        assertEquals(25, requests.get(1).size());
+        assertEquals(10, requests.get(2).size());
+    }
+
+    @Test
+    public void supersedeQueuedWrite() {
+        BatchWriter writer = new BatchWriter(dynamodb, null);
+        CompletableFuture<Void> first = writer.write(new BatchWriter.Write("SalientSession", item("session", "2016-01-01T00:00:00Z"))
+                .withReplaceKey("SalientSession/session"));
+        CompletableFuture<Void> second = writer.write(new BatchWriter.Write("SalientSession", item("session", "2016-01-01T00:00:01Z"))
+                .withReplaceKey("SalientSession/session"));
+        writer.drain();
+
+        assertEquals(1, requests.size());
+        assertEquals("2016-01-01T00:00:01Z", requests.get(0).get(0).getString("timestamp"));
+        assertTrue(first.isDone() && !first.isCompletedExceptionally());
+        assertTrue(second.isDone() && !second.isCompletedExceptionally());
+    }
+
+    @Test
+    public void retryFailedRequest() {
+        BatchWriter writer = new BatchWriter(dynamodb, null);
+        failingRequests = 1;
+        CompletableFuture<Void> write = writer.write(new BatchWriter.Write("SalientSessionEvent", item("session", "2016-01-01T00:00:00Z")));
+        writer.drain();
+        assertFalse(write.isDone());
+        assertEquals(1, writer.getRetryDepth());
+
+        writer.drain();
+        assertTrue(write.isDone() && !write.isCompletedExceptionally());
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void deadLetterAfterMaxAttempts() throws Exception {
+        BatchWriter writer = new BatchWriter(dynamodb, null)
+                .withMaxAttempts(2)
+                .withDeadLetters(new FileBlobStore(folder.getRoot().toPath()));
+        failingRequests = 2;
+        BatchWriter.Write write = new BatchWriter.Write("SalientSessionEvent", item("session", "2016-01-01T00:00:00Z"));
+        writer.write(write);
+        writer.drain();
+        writer.drain();
+
+        assertTrue(write.getFuture().isCompletedExceptionally());
+        assertTrue(write.isDeadLettered());
+        assertEquals(0, writer.getRetryDepth());
+        assertEquals(1, Files.list(folder.getRoot().toPath().resolve("SalientSessionEvent")).count());
+    }
+
+    private Item item(String sessionId, String timestamp) {
+        return new Item().withPrimaryKey("sessionId", sessionId, "timestamp", timestamp)
+                .withBinary("command", new byte[16]);
+    }
+
+}
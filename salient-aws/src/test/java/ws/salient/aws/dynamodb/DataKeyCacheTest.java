@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.aws.dynamodb;
+
+import com.amazonaws.services.kms.AWSKMS;
+import com.amazonaws.services.kms.model.DecryptRequest;
+import com.amazonaws.services.kms.model.DecryptResult;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DataKeyCacheTest {
+
+    static final byte[] KEY = new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+
+    AWSKMS kms;
+    // Plaintext buffers returned by KMS
+    List<ByteBuffer> plaintexts;
+    ByteBuffer ciphertext;
+    Map<String, String> context;
+
+    @Before
+    public void before() {
+        plaintexts = new CopyOnWriteArrayList();
+        kms = mock(AWSKMS.class);
+        when(kms.decrypt(any(DecryptRequest.class))).thenAnswer((invocation) -> {
+            ByteBuffer plaintext = ByteBuffer.wrap(KEY.clone());
+            plaintexts.add(plaintext);
+            return new DecryptResult().withPlaintext(plaintext);
+        });
+        ciphertext = ByteBuffer.wrap(new byte[] {42});
+        context = Collections.singletonMap("accountId", "account");
+    }
+
+    @Test
+    public void decryptOnceWithinTimeToLive() {
+        DataKeyCache keys = new DataKeyCache(kms).withTimeToLive(Duration.ofMinutes(5));
+        assertArrayEquals(KEY, keys.decrypt(ciphertext, context));
+        assertArrayEquals(KEY, keys.decrypt(ciphertext, context));
+        verify(kms, times(1)).decrypt(any(DecryptRequest.class));
+    }
+
+    @Test
+    public void decryptAgainAfterTimeToLive() throws Exception {
+        DataKeyCache keys = new DataKeyCache(kms).withTimeToLive(Duration.ofMillis(50));
+        keys.decrypt(ciphertext, context);
+        Thread.sleep(100);
+        assertArrayEquals(KEY, keys.decrypt(ciphertext, context));
+        verify(kms, times(2)).decrypt(any(DecryptRequest.class));
+    }
+
+    @Test
+    public void sweepExpiredEntries() throws Exception {
+        DataKeyCache keys = new DataKeyCache(kms).withTimeToLive(Duration.ofMillis(50));
+        keys.decrypt(ciphertext, context);
+        keys.decrypt(ByteBuffer.wrap(new byte[] {43}), context);
+        assertEquals(2, keys.size());
+
+        Thread.sleep(100);
+        keys.sweep();
+        assertEquals(0, keys.size());
+    }
+
+    @Test
+    public void zeroPlaintext() {
+        DataKeyCache keys = new DataKeyCache(kms);
+        byte[] key = keys.decrypt(ciphertext, context);
+        // Plaintext returned by KMS is zeroed once copied, callers get their own copy
+        assertArrayEquals(new byte[KEY.length], plaintexts.get(0).array());
+        key[0] = 0;
+        assertArrayEquals(KEY, keys.decrypt(ciphertext, context));
+    }
+
+}
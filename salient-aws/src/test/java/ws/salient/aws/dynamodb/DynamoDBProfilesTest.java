@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.aws.dynamodb;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ws.salient.account.ResolvedProfile;
+import ws.salient.model.Profile;
+import ws.salient.model.Settings;
+
+public class DynamoDBProfilesTest {
+
+    ConcurrentMap<String, AtomicInteger> versions;
+    ConcurrentMap<String, AtomicInteger> loads;
+    CountDownLatch loading;
+    AtomicBoolean failing;
+    DynamoDBProfiles profiles;
+    ExecutorService executor;
+
+    @Before
+    public void before() {
+        versions = new ConcurrentHashMap();
+        loads = new ConcurrentHashMap();
+        loading = new CountDownLatch(0);
+        failing = new AtomicBoolean();
+        executor = Executors.newFixedThreadPool(4);
+        // Each account has one active profile whose "version" property is the current stored version
+        profiles = new DynamoDBProfiles(null, null, new ObjectMapper()) {
+            @Override
+            protected Settings load(String accountId) {
+                loads.computeIfAbsent(accountId, (id) -> new AtomicInteger()).incrementAndGet();
+                // Read before waiting, as a query returns the settings stored when it ran
+                Profile profile = new Profile().withProperty("version", String.valueOf(version(accountId).get()));
+                try {
+                    loading.await();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+                if (failing.get()) {
+                    throw new RuntimeException("Unavailable");
+                }
+                return new Settings().withProfile("default", profile).withActiveProfile("default");
+            }
+        };
+    }
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shareResolvedProfile() {
+        ResolvedProfile profile = profiles.resolve("account", null);
+        assertSame(profile, profiles.resolve("account", null));
+
+        version("account").incrementAndGet();
+        profiles.modified("account");
+        ResolvedProfile modified = profiles.resolve("account", null);
+        assertNotSame(profile, modified);
+        assertEquals("1", modified.getProperties().getProperty("version"));
+    }
+
+    @Test
+    public void neverCacheProfileResolvedBeforeModification() throws Exception {
+        profiles.withRefresh(Duration.ofHours(1), Executors.newSingleThreadExecutor());
+        profiles.resolve("account", null);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Future[] resolving = new Future[3];
+        for (int i = 0; i < resolving.length; i++) {
+            resolving[i] = executor.submit(() -> {
+                while (running.get()) {
+                    profiles.resolve("account", null);
+                }
+            });
+        }
+        for (int i = 0; i < 1000; i++) {
+            version("account").incrementAndGet();
+            profiles.modified("account");
+        }
+        running.set(false);
+        for (Future future : resolving) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        // Settings are reloaded in the background, a profile cached across the last modification would never catch up
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!"1000".equals(profiles.resolve("account", null).getProperties().getProperty("version"))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("1000", profiles.resolve("account", null).getProperties().getProperty("version"));
+        profiles.shutdown();
+    }
+
+    @Test
+    public void loadSettingsOnce() throws Exception {
+        profiles.resolve("root", null);
+        loading = new CountDownLatch(1);
+        Future first = executor.submit(() -> profiles.getProperties("account", null));
+        Future second = executor.submit(() -> profiles.getProperties("account", null));
+        // Both lookups are waiting on the cold account before the load completes
+        Thread.sleep(100);
+        loading.countDown();
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+
+        assertEquals(1, loads.get("account").get());
+    }
+
+    @Test
+    public void dropSettingsModifiedWhileLoading() throws Exception {
+        profiles.resolve("root", null);
+        loading = new CountDownLatch(1);
+        Future first = executor.submit(() -> profiles.getProperties("account", null));
+        Thread.sleep(100);
+        version("account").incrementAndGet();
+        profiles.modified("account");
+        loading.countDown();
+        first.get(10, TimeUnit.SECONDS);
+
+        assertEquals("1", profiles.getProperties("account", null).getProperty("version"));
+    }
+
+    @Test
+    public void backOffFailedRefresh() throws Exception {
+        ExecutorService refreshExecutor = Executors.newSingleThreadExecutor();
+        profiles.withRefresh(Duration.ofMillis(100), refreshExecutor);
+        profiles.getProperties("account", null);
+        Thread.sleep(150);
+
+        failing.set(true);
+        profiles.getProperties("account", null);
+        // Queued behind the failed refresh
+        refreshExecutor.submit(() -> {
+        }).get(10, TimeUnit.SECONDS);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("0", profiles.getProperties("account", null).getProperty("version"));
+        }
+        refreshExecutor.submit(() -> {
+        }).get(10, TimeUnit.SECONDS);
+
+        // Loaded once, then refreshed once and failed, the previous settings are kept for another timeToLive
+        assertEquals(2, loads.get("account").get());
+        profiles.shutdown();
+    }
+
+    private AtomicInteger version(String accountId) {
+        return versions.computeIfAbsent(accountId, (id) -> new AtomicInteger());
+    }
+
+}
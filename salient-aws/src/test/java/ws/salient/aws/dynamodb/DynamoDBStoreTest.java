@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.aws.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ws.salient.aws.s3.FileBlobStore;
+
+public class DynamoDBStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    DynamoDBStore store;
+    ExecutorService blobExecutor;
+
+    @Before
+    public void before() {
+        blobExecutor = Executors.newFixedThreadPool(2);
+        store = new DynamoDBStore(null, null, new ObjectMapper(), null)
+                .withBlobStore(new FileBlobStore(folder.getRoot().toPath()), blobExecutor);
+    }
+
+    @Test
+    public void spillLargeSession() {
+        byte[] sessionBytes = new byte[2500 * 1024];
+        new Random(0).nextBytes(sessionBytes);
+        Item item = new Item().withPrimaryKey("sessionId", "session", "timestamp", "2016-01-01T00:00:00Z")
+                .withBinary("session", sessionBytes);
+
+        item = store.spill(item);
+        assertFalse(item.hasAttribute("session"));
+        assertTrue(item.hasAttribute("blob"));
+
+        item = store.unspill(item);
+        assertArrayEquals(sessionBytes, item.getBinary("session"));
+    }
+
+    @Test
+    public void keepSmallSession() {
+        byte[] sessionBytes = new byte[1024];
+        Item item = new Item().withPrimaryKey("sessionId", "session", "timestamp", "2016-01-01T00:00:00Z")
+                .withBinary("session", sessionBytes);
+
+        item = store.spill(item);
+        assertTrue(item.hasAttribute("session"));
+        assertFalse(item.hasAttribute("blob"));
+    }
+
+    @Test
+    public void replayAfterLegacySnapshotBatch() {
+        assertEquals("2016-01-01T00:00:00.100999999Z", DynamoDBStore.getEventsAfter("2016-01-01T00:00:00.100Z"));
+        assertEquals("2016-01-01T00:00:00.999999999Z", DynamoDBStore.getEventsAfter("2016-01-01T00:00:00Z"));
+        assertEquals("2016-01-01T00:00:00.100000001Z", DynamoDBStore.getEventsAfter("2016-01-01T00:00:00.100000001Z"));
+
+        // Snapshot taken at the third command of its batch, it holds the batch's events already
+        String after = DynamoDBStore.getEventsAfter("2016-01-01T00:00:00Z");
+        List<String> events = Arrays.asList("2016-01-01T00:00:00.000000000Z", "2016-01-01T00:00:00.000000001Z",
+                "2016-01-01T00:00:00.000000002Z", "2016-01-01T00:00:01.000000000Z");
+        List<String> replayed = events.stream().filter((event) -> event.compareTo(after) > 0).collect(Collectors.toList());
+        assertEquals(Arrays.asList("2016-01-01T00:00:01.000000000Z"), replayed);
+    }
+
+    @Test
+    public void latestSnapshotAcrossFormats() {
+        // Legacy key sorts last as a string but is the earliest instant
+        Item legacy = new Item().withPrimaryKey("sessionId", "session", "timestamp", "2016-01-01T00:00:00.1Z");
+        Item later = new Item().withPrimaryKey("sessionId", "session", "timestamp", "2016-01-01T00:00:00.123000000Z");
+        assertTrue(legacy.getString("timestamp").compareTo(later.getString("timestamp")) > 0);
+        assertSame(later, DynamoDBStore.getLatest(Arrays.asList(later, legacy)));
+    }
+
+    @Test
+    public void spillLargeItem() {
+        // Session alone is under the threshold, the item with its dictionary is not
+        Item item = new Item().withPrimaryKey("sessionId", "session", "timestamp", "2016-01-01T00:00:00Z")
+                .withBinary("session", new byte[200 * 1024])
+                .withBinary("dictionary", new byte[200 * 1024]);
+
+        item = store.spill(item);
+        assertFalse(item.hasAttribute("session"));
+        assertTrue(item.hasAttribute("blob"));
+    }
+
+    @Test
+    public void deleteSupersededSpill() throws Exception {
+        Item first = store.spill(new Item().withPrimaryKey("sessionId", "session", "timestamp", "2016-01-01T00:00:00Z")
+                .withBinary("session", new byte[400 * 1024]));
+        store.superseded(new DynamoDBStore.Snapshot(first, null, 0, null));
+        Item second = store.spill(new Item().withPrimaryKey("sessionId", "session", "timestamp", "2016-01-02T00:00:00Z")
+                .withBinary("session", new byte[400 * 1024]));
+        store.superseded(new DynamoDBStore.Snapshot(second, null, 0, null));
+
+        blobExecutor.shutdown();
+        blobExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        assertFalse(Files.exists(folder.getRoot().toPath().resolve("session/2016-01-01T00:00:00Z/0")));
+        assertTrue(Files.exists(folder.getRoot().toPath().resolve("session/2016-01-02T00:00:00Z/0")));
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.aws.dynamodb;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventCompactorTest {
+
+    ScheduledThreadPoolExecutor scheduler;
+    List<String> compactions;
+    List<String> completed;
+
+    @Before
+    public void before() {
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        compactions = new CopyOnWriteArrayList();
+        completed = new CopyOnWriteArrayList();
+    }
+
+    @Test
+    public void scheduleSessionOnce() {
+        EventCompactor compactor = compactor(Duration.ofHours(1));
+        String now = DynamoDBStore.NANO_INSTANT.format(Instant.now());
+        compactor.snapshotStored("first", now);
+        compactor.snapshotStored("first", DynamoDBStore.NANO_INSTANT.format(Instant.now().plusMillis(1)));
+        compactor.snapshotStored("second", now);
+
+        assertEquals(2, compactor.getSessionsPending());
+        assertEquals(2, scheduler.getQueue().size());
+    }
+
+    @Test
+    public void compactLatestSnapshot() throws Exception {
+        EventCompactor compactor = compactor(Duration.ZERO);
+        // Hold the scheduler, so both snapshots are stored before the compaction runs
+        CountDownLatch stored = new CountDownLatch(1);
+        scheduler.execute(() -> {
+            try {
+                stored.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        String first = DynamoDBStore.NANO_INSTANT.format(Instant.now().minusSeconds(2));
+        String latest = DynamoDBStore.NANO_INSTANT.format(Instant.now().minusSeconds(1));
+        compactor.snapshotStored("session", first);
+        compactor.snapshotStored("session", latest);
+        stored.countDown();
+
+        scheduler.shutdown();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("session/" + latest), compactions);
+        assertEquals(Arrays.asList("session/" + latest), completed);
+        assertEquals(0, compactor.getSessionsPending());
+    }
+
+    private EventCompactor compactor(Duration retention) {
+        return new EventCompactor(null, scheduler) {
+            @Override
+            protected void compact(String sessionId, String cutoff) {
+                compactions.add(sessionId + "/" + cutoff);
+            }
+
+            @Override
+            protected void compacted(String sessionId, String snapshot) {
+                completed.add(sessionId + "/" + snapshot);
+            }
+        }.withRetention(retention);
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.aws.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ws.salient.model.Command;
+import ws.salient.model.commands.Insert;
+import ws.salient.session.Session;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path directory;
+    byte[] command;
+
+    @Before
+    public void before() {
+        directory = folder.getRoot().toPath();
+        command = new byte[600];
+        new Random(0).nextBytes(command);
+    }
+
+    @Test
+    public void deleteStoredSegment() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(directory, 1024, 10);
+        WriteAheadLog.Entry first = wal.append("SalientSessionEvent", event("2016-01-01T00:00:00.000000000Z"));
+        wal.append("SalientSessionEvent", event("2016-01-01T00:00:00.000000001Z"));
+        assertEquals(2, segments());
+
+        first.release();
+        assertEquals(1, segments());
+    }
+
+    @Test
+    public void replayAfterCrash() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(directory, 1024, 10);
+        wal.append("SalientSessionEvent", event("2016-01-01T00:00:00.000000000Z"));
+        wal.sync();
+
+        List<Item> replayed = new ArrayList();
+        new WriteAheadLog(directory, 1024, 10).recover((tableName, item) -> {
+            assertEquals("SalientSessionEvent", tableName);
+            replayed.add(item);
+            return CompletableFuture.completedFuture(null);
+        });
+
+        assertEquals(1, replayed.size());
+        assertEquals("session", replayed.get(0).getString("sessionId"));
+        assertEquals("2016-01-01T00:00:00.000000000Z", replayed.get(0).getString("timestamp"));
+        assertArrayEquals(command, replayed.get(0).getBinary("command"));
+        assertEquals(0, segments());
+    }
+
+    @Test
+    public void deadLetterFailedReplay() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(directory, 1024, 10);
+        wal.append("SalientSessionEvent", event("2016-01-01T00:00:00.000000000Z"));
+        wal.sync();
+
+        CompletableFuture<Void> rejected = new CompletableFuture();
+        rejected.completeExceptionally(new RuntimeException("Rejected"));
+        new WriteAheadLog(directory, 1024, 10).recover((tableName, item) -> rejected);
+
+        // Moved aside, the segment is not replayed on every start
+        assertEquals(0, segments());
+        assertTrue(Files.size(directory.resolve(String.format("%020d.dead", 0))) > command.length);
+        List<Item> replayed = new ArrayList();
+        new WriteAheadLog(directory, 1024, 10).recover((tableName, item) -> {
+            replayed.add(item);
+            return CompletableFuture.completedFuture(null);
+        });
+        assertEquals(0, replayed.size());
+    }
+
+    @Test
+    public void skipRedeliveredAfterRecovery() throws Exception {
+        // Crash after accepting record 100, its event and snapshot only reached the log
+        WriteAheadLog wal = new WriteAheadLog(directory, 64 * 1024, 10);
+        wal.append("SalientSessionEvent", event("2016-01-01T00:00:00.000000000Z")
+                .withString("shardId", "shard").withString("sequenceNumber", "100"));
+        wal.append("SalientSession", new Item().withPrimaryKey("sessionId", "session", "timestamp", "2016-01-01T00:00:00.000000000Z")
+                .withMap("sequenceNumbers", Collections.singletonMap("shard", "100")));
+        wal.sync();
+
+        // Recovered into the tables before records are processed
+        Map<String, Item> table = new LinkedHashMap();
+        new WriteAheadLog(directory, 64 * 1024, 10).recover((tableName, item) -> {
+            table.put(tableName + "/" + item.getString("sessionId") + "/" + item.getString("timestamp"), item);
+            return CompletableFuture.completedFuture(null);
+        });
+
+        // Records 100 and 101 are redelivered, only 101 is applied
+        Session session = new Session("session");
+        session.setSequenceNumbers(table.get("SalientSession/session/2016-01-01T00:00:00.000000000Z").getMap("sequenceNumbers"));
+        List<Command> redelivered = new ArrayList();
+        redelivered.add(new Insert().withSequenceNumber("shard", "100"));
+        redelivered.add(new Insert().withSequenceNumber("shard", "101"));
+        int index = 1;
+        for (Command command : redelivered) {
+            if (!session.isApplied(command)) {
+                table.put("SalientSessionEvent/session/" + index++, event("2016-01-01T00:00:01.000000000Z")
+                        .withString("shardId", command.getShardId()).withString("sequenceNumber", command.getSequenceNumber()));
+            }
+        }
+
+        assertEquals(1, table.values().stream().filter((item) -> "100".equals(item.getString("sequenceNumber"))).count());
+        assertEquals(1, table.values().stream().filter((item) -> "101".equals(item.getString("sequenceNumber"))).count());
+    }
+
+    private Item event(String timestamp) {
+        return new Item().withPrimaryKey("sessionId", "session", "timestamp", timestamp)
+                .withBinary("command", command);
+    }
+
+    private long segments() throws IOException {
+        return Files.list(directory).filter((path) -> path.toString().endsWith(".wal")).count();
+    }
+
+}
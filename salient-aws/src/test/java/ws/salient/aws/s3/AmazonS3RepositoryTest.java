@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.aws.s3;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import org.drools.compiler.kie.builder.impl.AbstractKieModule;
+import org.drools.compiler.kproject.ReleaseIdImpl;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.junit.After;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kie.api.KieServices;
+import org.kie.api.builder.KieBuilder;
+import org.kie.api.builder.KieFileSystem;
+import org.kie.api.builder.Message;
+import org.kie.api.builder.ReleaseId;
+import ws.salient.knowledge.KnowledgeBase;
+
+public class AmazonS3RepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    KieServices kie;
+    String artifactId;
+    String url;
+    RemoteRepository remote;
+    List<ReleaseId> deployed;
+    File pom;
+
+    @Before
+    public void before() throws Exception {
+        kie = KieServices.Factory.get();
+        artifactId = "precompiled-" + UUID.randomUUID();
+        url = folder.newFolder("repository").toURI().toString();
+        remote = new RemoteRepository.Builder("salient", "default", url).build();
+        deployed = new LinkedList();
+    }
+
+    @After
+    public void after() {
+        deployed.forEach((releaseId) -> kie.getRepository().removeKieModule(releaseId));
+        // Directories are only removed once empty
+        File file = pom;
+        while (file != null && file.delete()) {
+            file = file.getParentFile();
+        }
+    }
+
+    @Test
+    public void resolvePrecompiledKieBase() throws Exception {
+        ReleaseId releaseId = deploy("1.0.0", true);
+
+        AmazonS3Repository repository = new AmazonS3Repository().withPrecompiled(true);
+        repository.setRemoteRepositories(Collections.singleton(remote));
+        KnowledgeBase knowledgeBase = repository.getKnowledgeBase(releaseId.toExternalForm() + ":precompiled");
+
+        // A base compiled by the container would be the instance it caches
+        assertNotSame(knowledgeBase.getContainer().getKieBase("precompiled"), knowledgeBase.getBase());
+        repository.shutdown();
+    }
+
+    @Test
+    public void compileUnlessPrecompiledEnabled() throws Exception {
+        ReleaseId releaseId = deploy("1.0.0", true);
+
+        AmazonS3Repository repository = new AmazonS3Repository();
+        repository.setRemoteRepositories(Collections.singleton(remote));
+        KnowledgeBase knowledgeBase = repository.getKnowledgeBase(releaseId.toExternalForm() + ":precompiled");
+
+        assertSame(knowledgeBase.getContainer().getKieBase("precompiled"), knowledgeBase.getBase());
+        repository.shutdown();
+    }
+
+    @Test
+    public void upgradeInPlace() throws Exception {
+        ReleaseId previous = deploy("1.0.0", false);
+        ReleaseId releaseId = deploy("1.0.1", false);
+
+        AmazonS3Repository repository = new AmazonS3Repository().withInPlaceUpgrade(true);
+        repository.setRemoteRepositories(Collections.singleton(remote));
+        KnowledgeBase previousBase = repository.getKnowledgeBase(previous.toExternalForm() + ":precompiled");
+        KnowledgeBase knowledgeBase = repository.getKnowledgeBase(releaseId.toExternalForm() + ":precompiled");
+
+        assertSame(previousBase.getContainer(), knowledgeBase.getContainer());
+        repository.shutdown();
+    }
+
+    @Test
+    public void keepRetainedVersion() throws Exception {
+        ReleaseId previous = deploy("1.0.0", false);
+        ReleaseId releaseId = deploy("1.0.1", false);
+        String previousId = previous.toExternalForm() + ":precompiled";
+
+        // An alias still points at the previous version
+        AmazonS3Repository repository = new AmazonS3Repository().withInPlaceUpgrade(true)
+                .withRetained(() -> Collections.singleton(previousId));
+        repository.setRemoteRepositories(Collections.singleton(remote));
+        KnowledgeBase previousBase = repository.getKnowledgeBase(previousId);
+        KnowledgeBase knowledgeBase = repository.getKnowledgeBase(releaseId.toExternalForm() + ":precompiled");
+
+        assertNotSame(previousBase.getContainer(), knowledgeBase.getContainer());
+        assertSame(previousBase, repository.getKnowledgeBase(previousId));
+        repository.shutdown();
+    }
+
+    @Test
+    public void buildFreshOverPrecompiledBase() throws Exception {
+        ReleaseId previous = deploy("1.0.0", true);
+        ReleaseId releaseId = deploy("1.0.1", true);
+
+        AmazonS3Repository repository = new AmazonS3Repository().withInPlaceUpgrade(true).withPrecompiled(true);
+        repository.setRemoteRepositories(Collections.singleton(remote));
+        KnowledgeBase previousBase = repository.getKnowledgeBase(previous.toExternalForm() + ":precompiled");
+        KnowledgeBase knowledgeBase = repository.getKnowledgeBase(releaseId.toExternalForm() + ":precompiled");
+
+        // Updating the container would leave the deserialized base on the previous version
+        assertNotSame(previousBase.getContainer(), knowledgeBase.getContainer());
+        repository.shutdown();
+    }
+
+    // Deploys a KJAR with one KieBase and no classes, then forgets it so it is resolved from the repository
+    private ReleaseId deploy(String version, boolean precompile) throws Exception {
+        ReleaseId releaseId = kie.newReleaseId("ws.salient", artifactId, version);
+        String pomXml = "<project xmlns=\"http://maven.apache.org/POM/4.0.0\">"
+                + "<modelVersion>4.0.0</modelVersion>"
+                + "<groupId>" + releaseId.getGroupId() + "</groupId>"
+                + "<artifactId>" + releaseId.getArtifactId() + "</artifactId>"
+                + "<version>" + releaseId.getVersion() + "</version>"
+                + "<distributionManagement><repository><id>salient</id><url>" + url + "</url></repository></distributionManagement>"
+                + "</project>";
+        KieFileSystem kfs = kie.newKieFileSystem();
+        kfs.writePomXML(pomXml);
+        kfs.writeKModuleXML("<kmodule xmlns=\"http://jboss.org/kie/6.0.0/kmodule\">"
+                + "<kbase name=\"precompiled\" packages=\"ws.salient.precompiled\"/>"
+                + "</kmodule>");
+        kfs.write("src/main/resources/ws/salient/precompiled/hello.drl", "package ws.salient.precompiled\n"
+                + "rule \"hello " + version + "\" when String() then end\n");
+        KieBuilder builder = kie.newKieBuilder(kfs).buildAll();
+        assertFalse(builder.getResults().hasMessages(Message.Level.ERROR));
+
+        // putKieModule reads the pom from the working directory, as a KJAR build leaves it
+        pom = new File(((ReleaseIdImpl) releaseId).getPomXmlPath());
+        pom.getParentFile().mkdirs();
+        Files.write(pom.toPath(), pomXml.getBytes(StandardCharsets.UTF_8));
+
+        new AmazonS3Repository().putKieModule((AbstractKieModule) builder.getKieModule(), remote, precompile);
+        kie.getRepository().removeKieModule(releaseId);
+        deployed.add(releaseId);
+        return releaseId;
+    }
+
+}
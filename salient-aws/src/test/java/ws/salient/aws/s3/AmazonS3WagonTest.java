@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.aws.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import org.apache.maven.wagon.repository.Repository;
+import static org.junit.Assert.assertArrayEquals;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AmazonS3WagonTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    AmazonS3 s3;
+    byte[] content;
+    ObjectMetadata metadata;
+
+    @Before
+    public void before() {
+        content = new byte[10 * 1024];
+        new Random(0).nextBytes(content);
+        metadata = new ObjectMetadata();
+        metadata.setContentLength(content.length);
+        metadata.setHeader("ETag", "etag");
+
+        // Stands in for S3, serving ranges of the content
+        s3 = mock(AmazonS3.class);
+        when(s3.getObjectMetadata("bucket", "maven/ws/salient/kjar.jar")).thenAnswer((invocation) -> metadata);
+        when(s3.getObject(any(GetObjectRequest.class))).thenAnswer((invocation) -> {
+            GetObjectRequest request = (GetObjectRequest) invocation.getArguments()[0];
+            long[] range = request.getRange();
+            byte[] bytes = range == null ? content : Arrays.copyOfRange(content, (int) range[0], (int) range[1] + 1);
+            S3Object object = new S3Object();
+            object.setObjectContent(new ByteArrayInputStream(bytes));
+            return object;
+        });
+    }
+
+    @Test
+    public void rangedGet() throws Exception {
+        AmazonS3Wagon wagon = new AmazonS3Wagon(s3).withRangedGets(1024, 2048, Executors.newFixedThreadPool(4));
+        wagon.connect(new Repository("salient", "s3://bucket/maven"));
+
+        File file = folder.newFile();
+        wagon.get("ws/salient/kjar.jar", file);
+
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        verify(s3, times(10)).getObject(any(GetObjectRequest.class));
+    }
+
+    @Test
+    public void cachedGet() throws Exception {
+        AmazonS3Wagon wagon = new AmazonS3Wagon(s3).withCache(folder.newFolder().toPath());
+        wagon.connect(new Repository("salient", "s3://bucket/maven"));
+
+        File file = folder.newFile();
+        wagon.get("ws/salient/kjar.jar", file);
+        File cached = folder.newFile();
+        wagon.get("ws/salient/kjar.jar", cached);
+
+        assertArrayEquals(content, Files.readAllBytes(cached.toPath()));
+        verify(s3, times(1)).getObject(any(GetObjectRequest.class));
+
+        // Object replaced, the cached copy is stale
+        metadata.setHeader("ETag", "changed");
+        wagon.get("ws/salient/kjar.jar", folder.newFile());
+        verify(s3, times(2)).getObject(any(GetObjectRequest.class));
+    }
+
+}
@@ -43,6 +43,16 @@ public interface Profiles {
     public default Map<String, String> getAliases(String accountId, List<String> profiles) {
         return new LinkedHashMap<>();
     }
+
+    // Aliases and properties together, implementations may return the same instance until modified
+    public default ResolvedProfile resolve(String accountId, List<String> profiles) {
+        return new ResolvedProfile(getAliases(accountId, profiles), getProperties(accountId, profiles));
+    }
+
+    // Knowledge bases referenced by root and active account aliases, loaded ahead of traffic
+    public default Set<String> getKnowledgeBaseIds() {
+        return Collections.emptySet();
+    }
     
 
 }
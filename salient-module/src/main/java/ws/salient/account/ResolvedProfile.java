@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.account;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Aliases and properties of an account merged over a profile list, shared by every command using them.
+// Each resolution gets a new version, so an unchanged profile is recognised by reference or version.
+public class ResolvedProfile {
+
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final Map<String, String> aliases;
+    private final Properties properties;
+    private final long version;
+    private final int hashCode;
+
+    public ResolvedProfile(Map<String, String> aliases, Properties properties) {
+        this.aliases = Collections.unmodifiableMap(new LinkedHashMap(aliases));
+        this.properties = new UnmodifiableProperties(properties);
+        this.version = VERSIONS.incrementAndGet();
+        this.hashCode = 31 * this.aliases.hashCode() + this.properties.hashCode();
+    }
+
+    public Map<String, String> getAliases() {
+        return aliases;
+    }
+
+    // Shared between sessions, must not be modified
+    public Properties getProperties() {
+        return properties;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ResolvedProfile)) {
+            return false;
+        }
+        ResolvedProfile other = (ResolvedProfile) obj;
+        if (version == other.version) {
+            return true;
+        }
+        return hashCode == other.hashCode && aliases.equals(other.aliases) && properties.equals(other.properties);
+    }
+
+    private static class UnmodifiableProperties extends Properties {
+
+        private final boolean sealed;
+
+        public UnmodifiableProperties(Properties properties) {
+            super.putAll(properties);
+            sealed = true;
+        }
+
+        @Override
+        public synchronized Object put(Object key, Object value) {
+            if (sealed) {
+                throw new UnsupportedOperationException();
+            }
+            return super.put(key, value);
+        }
+
+        @Override
+        public synchronized void putAll(Map<?, ?> map) {
+            if (sealed) {
+                throw new UnsupportedOperationException();
+            }
+            super.putAll(map);
+        }
+
+        @Override
+        public synchronized Object remove(Object key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized void clear() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.knowledge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.drools.core.common.DroolsObjectInputStream;
+import org.drools.core.common.DroolsObjectOutputStream;
+import org.kie.api.KieBase;
+import org.kie.api.builder.ReleaseId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Compiled KieBases serialized under directory/groupId/artifactId/version/name.kbase.
+// Each file starts with the checksum of the module it was compiled from, stale files are ignored and replaced.
+public class KieBaseCache {
+
+    private static final Logger log = LoggerFactory.getLogger(KieBaseCache.class);
+
+    private final Path directory;
+
+    public KieBaseCache(Path directory) {
+        this.directory = directory;
+    }
+
+    public KieBase load(ReleaseId releaseId, String name, String checksum, ClassLoader classLoader) {
+        Path file = getPath(releaseId, name);
+        if (checksum == null || !Files.isRegularFile(file)) {
+            return null;
+        }
+        try (InputStream fileIn = new BufferedInputStream(Files.newInputStream(file))) {
+            KieBase base = read(fileIn, checksum, classLoader);
+            if (base == null) {
+                log.info("Stale compiled knowledge base " + file);
+                Files.deleteIfExists(file);
+                return null;
+            }
+            log.info("Loaded compiled knowledge base " + file);
+            return base;
+        } catch (IOException | ClassNotFoundException | RuntimeException ex) {
+            log.warn("Unable to load compiled knowledge base " + file, ex);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException deleteEx) {
+                log.warn("Unable to delete " + file, deleteEx);
+            }
+            return null;
+        }
+    }
+
+    public void store(ReleaseId releaseId, String name, String checksum, KieBase base) {
+        if (checksum == null) {
+            return;
+        }
+        Path file = getPath(releaseId, name);
+        try {
+            Files.createDirectories(file.getParent());
+            // Written aside and moved into place, a partial file is never loaded
+            Path temp = Files.createTempFile(file.getParent(), name, ".tmp");
+            try (OutputStream fileOut = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                write(fileOut, checksum, base);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Stored compiled knowledge base " + file);
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Unable to store compiled knowledge base " + file, ex);
+        }
+    }
+
+    // Same format is used for precompiled artifacts published next to a KJAR
+    public static void write(OutputStream out, String checksum, KieBase base) throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeUTF(checksum);
+        header.flush();
+        try (ObjectOutputStream objectOut = new DroolsObjectOutputStream(out)) {
+            objectOut.writeObject(base);
+        }
+    }
+
+    // Returns null when the KieBase was compiled from a different module
+    public static KieBase read(InputStream in, String checksum, ClassLoader classLoader) throws IOException, ClassNotFoundException {
+        DataInputStream header = new DataInputStream(in);
+        if (!checksum.equals(header.readUTF())) {
+            return null;
+        }
+        try (ObjectInputStream objectIn = new DroolsObjectInputStream(in, classLoader)) {
+            return (KieBase) objectIn.readObject();
+        }
+    }
+
+    public Path getPath(ReleaseId releaseId, String name) {
+        return directory.resolve(releaseId.getGroupId())
+                .resolve(releaseId.getArtifactId())
+                .resolve(releaseId.getVersion())
+                .resolve(name + ".kbase");
+    }
+
+    // SHA-256 of the module jar as deployed, null when it cannot be read
+    public static String checksum(Path jar) {
+        try (InputStream in = Files.newInputStream(jar)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (IOException | NoSuchAlgorithmException | RuntimeException ex) {
+            log.warn("Unable to checksum module " + jar, ex);
+            return null;
+        }
+    }
+
+}
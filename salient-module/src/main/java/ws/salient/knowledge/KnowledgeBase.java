@@ -18,6 +18,10 @@ package ws.salient.knowledge;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 import org.drools.compiler.kie.builder.impl.InternalKieModule;
 import org.kie.api.KieBase;
 import org.kie.api.builder.ReleaseId;
@@ -40,6 +44,10 @@ public class KnowledgeBase {
     private ObjectMapper json;
     private Marshaller marshaller;
     private SerializableStrategy strategy;
+    private AtomicInteger references = new AtomicInteger();
+    private volatile long lastUsed = System.currentTimeMillis();
+    private boolean disposed;
+    private ReentrantReadWriteLock updateLock = new ReentrantReadWriteLock();
 
     public KnowledgeBase() {
     }
@@ -155,6 +163,88 @@ public class KnowledgeBase {
         this.marshaller = marshaller;
     }
 
+    // Resident sessions hold a reference, unreferenced knowledge bases may be disposed once idle.
+    // References and disposal are guarded by the reference counter, which upgraded instances share.
+    public void acquire() {
+        synchronized (references) {
+            if (disposed) {
+                throw new IllegalStateException("Knowledge base disposed: " + releaseId + " " + name);
+            }
+            references.incrementAndGet();
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    public void release() {
+        references.decrementAndGet();
+        lastUsed = System.currentTimeMillis();
+    }
+
+    // Returns false once disposed, the caller looks the knowledge base up again
+    public boolean touch() {
+        synchronized (references) {
+            if (disposed) {
+                return false;
+            }
+            lastUsed = System.currentTimeMillis();
+            return true;
+        }
+    }
+
+    // Disposes only if unreferenced and unused since idleSince, a base touched or acquired meanwhile is kept
+    public boolean disposeIfIdle(long idleSince) {
+        synchronized (references) {
+            if (disposed || references.get() > 0 || lastUsed >= idleSince) {
+                return false;
+            }
+            disposed = true;
+        }
+        dispose();
+        return true;
+    }
+
+    // Sessions fire rules under the read lock, so the shared KieBase is not updated in place meanwhile
+    public Lock getReadLock() {
+        return updateLock.readLock();
+    }
+
+    // Runs an in-place update of the container once no session of this or an upgraded instance is firing rules
+    public <T> T update(Supplier<T> update) {
+        updateLock.writeLock().lock();
+        try {
+            return update.get();
+        } finally {
+            updateLock.writeLock().unlock();
+        }
+    }
+
+    public int getReferenceCount() {
+        return references.get();
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    // Same container and KieBase after KieContainer.updateToVersion, sessions of either instance count as references
+    public KnowledgeBase upgradeTo(ReleaseId releaseId, InternalKieModule module) {
+        KnowledgeBase upgraded = new KnowledgeBase(name).withBase(base).withContainer(container).withJson(json)
+                .withSerializer(serializer).withModule(module).withReleaseId(releaseId);
+        upgraded.marshaller = marshaller;
+        upgraded.strategy = strategy;
+        upgraded.references = references;
+        upgraded.updateLock = updateLock;
+        return upgraded;
+    }
+
+    public void dispose() {
+        marshaller = null;
+        strategy = null;
+        if (container != null) {
+            container.dispose();
+        }
+    }
+
     @Override
     public int hashCode() {
         int hash = 7;
@@ -16,7 +16,9 @@
 
 package ws.salient.knowledge;
 
+import java.time.Duration;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import org.eclipse.aether.repository.RemoteRepository;
 import org.kie.api.KieServices;
 import org.kie.api.builder.ReleaseId;
@@ -26,6 +28,14 @@ public interface KnowledgeRepository {
     
     public KnowledgeBase getKnowledgeBase(String knowledgeBaseId);
 
+    // Disposes knowledge bases unused for gracePeriod, except the retained ids
+    public default void evict(Set<String> retained, Duration gracePeriod) {
+    }
+
+    public default CompletableFuture<KnowledgeBase> getKnowledgeBaseAsync(String knowledgeBaseId) {
+        return CompletableFuture.supplyAsync(() -> getKnowledgeBase(knowledgeBaseId));
+    }
+
     public default void setRemoteRepositories(Set<RemoteRepository> remoteRepositories) {
         
     }
@@ -47,6 +47,8 @@ public class Command implements Serializable {
     private String sessionId;
     private String knowledgeBaseId;
     private Instant timestamp;
+    private String shardId;
+    private String sequenceNumber;
 
     public Command(String sessionId) {
         this.sessionId = sessionId;
@@ -128,4 +130,26 @@ public class Command implements Serializable {
         return this;
     }
 
+    public String getShardId() {
+        return shardId;
+    }
+
+    public void setShardId(String shardId) {
+        this.shardId = shardId;
+    }
+
+    public String getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public void setSequenceNumber(String sequenceNumber) {
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    public Command withSequenceNumber(String shardId, String sequenceNumber) {
+        this.shardId = shardId;
+        this.sequenceNumber = sequenceNumber;
+        return this;
+    }
+
 }
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.model.codec;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.POJONode;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import ws.salient.model.Command;
+import ws.salient.model.commands.AbortWorkItem;
+import ws.salient.model.commands.CompleteWorkItem;
+import ws.salient.model.commands.Insert;
+import ws.salient.model.commands.ModifyProfile;
+import ws.salient.model.commands.WorkItem;
+
+// Versioned binary form of commands, used for both event writes and replay.
+// Names (account, knowledge base, profiles, fact classes and fields) are dictionary encoded,
+// Insert payloads are written as a compact tree, anything else falls back to JSON.
+public class CommandCodec {
+
+    public static final int VERSION = 1;
+
+    private static final int COMMAND = 0;
+    private static final int INSERT = 1;
+    private static final int COMPLETE_WORK_ITEM = 2;
+    private static final int ABORT_WORK_ITEM = 3;
+    private static final int MODIFY_PROFILE = 4;
+    private static final int JSON = 127;
+
+    private static final int SESSION_ID = 1;
+    private static final int ACCOUNT_ID = 1 << 1;
+    private static final int KNOWLEDGE_BASE_ID = 1 << 2;
+    private static final int PROFILES = 1 << 3;
+    private static final int TIMESTAMP = 1 << 4;
+    private static final int BODY = 1 << 5;
+
+    private static final int NULL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int LONG = 3;
+    private static final int DOUBLE = 4;
+    private static final int TEXT = 5;
+    private static final int ARRAY = 6;
+    private static final int OBJECT = 7;
+    private static final int BINARY = 8;
+    private static final int DECIMAL = 9;
+    private static final int BIG_INTEGER = 10;
+
+    private final ObjectMapper json;
+
+    public CommandCodec(ObjectMapper json) {
+        this.json = json;
+    }
+
+    public byte[] encode(Command command, CommandDictionary dictionary) {
+        Writer out = new Writer(dictionary);
+        out.writeByte(VERSION);
+        int type = getType(command);
+        out.writeByte(type);
+        if (type == JSON) {
+            try {
+                out.writeBytes(json.writeValueAsBytes(command));
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            return out.toByteArray();
+        }
+        int fields = 0;
+        fields |= command.getSessionId() != null ? SESSION_ID : 0;
+        fields |= command.getAccountId() != null ? ACCOUNT_ID : 0;
+        fields |= command.getKnowledgeBaseId() != null ? KNOWLEDGE_BASE_ID : 0;
+        fields |= command.getProfiles() != null ? PROFILES : 0;
+        fields |= command.getTimestamp() != null ? TIMESTAMP : 0;
+        fields |= getBody(command) != null ? BODY : 0;
+        out.writeByte(fields);
+        if (command.getSessionId() != null) {
+            out.writeName(command.getSessionId());
+        }
+        if (command.getAccountId() != null) {
+            out.writeName(command.getAccountId());
+        }
+        if (command.getKnowledgeBaseId() != null) {
+            out.writeName(command.getKnowledgeBaseId());
+        }
+        if (command.getProfiles() != null) {
+            out.writeVarLong(command.getProfiles().size());
+            command.getProfiles().forEach(out::writeName);
+        }
+        if (command.getTimestamp() != null) {
+            out.writeVarLong(command.getTimestamp().getEpochSecond());
+            out.writeVarLong(command.getTimestamp().getNano());
+        }
+        if (command instanceof WorkItem) {
+            out.writeVarLong(((WorkItem) command).getWorkItemId());
+        }
+        Object body = getBody(command);
+        if (body != null) {
+            if (type == INSERT) {
+                out.writeNode((JsonNode) body);
+            } else if (type == COMPLETE_WORK_ITEM) {
+                out.writeNode(json.valueToTree(body));
+            } else if (type == MODIFY_PROFILE) {
+                out.writeName((String) body);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public Command decode(byte[] bytes, CommandDictionary dictionary) {
+        try {
+            if (bytes.length > 0 && bytes[0] == '{') {
+                // Events written before the codec was introduced
+                return json.readValue(bytes, Command.class);
+            }
+            Reader in = new Reader(bytes, dictionary);
+            int version = in.readByte();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported command version: " + version);
+            }
+            int type = in.readByte();
+            if (type == JSON) {
+                return json.readValue(bytes, 2, bytes.length - 2, Command.class);
+            }
+            Command command = newCommand(type);
+            int fields = in.readByte();
+            if ((fields & SESSION_ID) != 0) {
+                command.setSessionId(in.readName());
+            }
+            if ((fields & ACCOUNT_ID) != 0) {
+                command.setAccountId(in.readName());
+            }
+            if ((fields & KNOWLEDGE_BASE_ID) != 0) {
+                command.setKnowledgeBaseId(in.readName());
+            }
+            if ((fields & PROFILES) != 0) {
+                int size = (int) in.readVarLong();
+                List<String> profiles = new ArrayList(size);
+                for (int i = 0; i < size; i++) {
+                    profiles.add(in.readName());
+                }
+                command.setProfiles(profiles);
+            }
+            if ((fields & TIMESTAMP) != 0) {
+                long seconds = in.readVarLong();
+                command.setTimestamp(Instant.ofEpochSecond(seconds, in.readVarLong()));
+            }
+            if (command instanceof WorkItem) {
+                ((WorkItem) command).setWorkItemId(in.readVarLong());
+            }
+            if ((fields & BODY) != 0) {
+                if (type == INSERT) {
+                    ((Insert) command).setObjects((ArrayNode) in.readNode());
+                } else if (type == COMPLETE_WORK_ITEM) {
+                    ((CompleteWorkItem) command).setResult(json.convertValue(in.readNode(), Map.class));
+                } else if (type == MODIFY_PROFILE) {
+                    ((ModifyProfile) command).setProfileName(in.readName());
+                }
+            }
+            return command;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private int getType(Command command) {
+        Class type = command.getClass();
+        if (type.equals(Command.class)) {
+            return COMMAND;
+        } else if (type.equals(Insert.class)) {
+            return INSERT;
+        } else if (type.equals(CompleteWorkItem.class) && ((WorkItem) command).getWorkItemId() != null) {
+            return COMPLETE_WORK_ITEM;
+        } else if (type.equals(AbortWorkItem.class) && ((WorkItem) command).getWorkItemId() != null) {
+            return ABORT_WORK_ITEM;
+        } else if (type.equals(ModifyProfile.class)) {
+            return MODIFY_PROFILE;
+        }
+        return JSON;
+    }
+
+    private Object getBody(Command command) {
+        if (command instanceof Insert) {
+            return ((Insert) command).getObjects();
+        } else if (command instanceof CompleteWorkItem) {
+            return ((CompleteWorkItem) command).getResult();
+        } else if (command instanceof ModifyProfile) {
+            return ((ModifyProfile) command).getProfileName();
+        }
+        return null;
+    }
+
+    private Command newCommand(int type) {
+        switch (type) {
+            case COMMAND:
+                return new Command();
+            case INSERT:
+                return new Insert();
+            case COMPLETE_WORK_ITEM:
+                return new CompleteWorkItem();
+            case ABORT_WORK_ITEM:
+                return new AbortWorkItem();
+            case MODIFY_PROFILE:
+                return new ModifyProfile();
+        }
+        throw new IllegalArgumentException("Unknown command type: " + type);
+    }
+
+    private class Writer {
+
+        private final CommandDictionary dictionary;
+        private final Map<String, Integer> locals = new HashMap();
+        private byte[] buffer = new byte[256];
+        private int position;
+
+        Writer(CommandDictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeBytes(byte[] value) {
+            ensure(value.length);
+            System.arraycopy(value, 0, buffer, position, value.length);
+            position += value.length;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            writeBytes(bytes);
+        }
+
+        // 0 = literal, odd = dictionary entry, even = earlier literal in this command
+        void writeName(String name) {
+            int entry = dictionary.lookup(name);
+            if (entry >= 0) {
+                writeVarLong(((long) entry << 1) | 1);
+                return;
+            }
+            Integer local = locals.get(name);
+            if (local != null) {
+                writeVarLong((local + 1L) << 1);
+                return;
+            }
+            writeVarLong(0);
+            writeString(name);
+            locals.put(name, locals.size());
+            dictionary.add(name);
+        }
+
+        void writeNode(JsonNode node) {
+            if (node instanceof POJONode) {
+                node = json.valueToTree(((POJONode) node).getPojo());
+            }
+            if (node == null || node.isNull() || node.isMissingNode()) {
+                writeByte(NULL);
+            } else if (node.isBoolean()) {
+                writeByte(node.booleanValue() ? TRUE : FALSE);
+            } else if (node.isBigInteger()) {
+                writeByte(BIG_INTEGER);
+                writeString(node.bigIntegerValue().toString());
+            } else if (node.isIntegralNumber()) {
+                writeByte(LONG);
+                long value = node.longValue();
+                writeVarLong((value << 1) ^ (value >> 63));
+            } else if (node.isBigDecimal()) {
+                writeByte(DECIMAL);
+                writeString(node.decimalValue().toString());
+            } else if (node.isNumber()) {
+                writeByte(DOUBLE);
+                long value = Double.doubleToRawLongBits(node.doubleValue());
+                ensure(8);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    buffer[position++] = (byte) (value >>> shift);
+                }
+            } else if (node.isTextual()) {
+                writeByte(TEXT);
+                writeString(node.textValue());
+            } else if (node.isBinary()) {
+                try {
+                    byte[] value = node.binaryValue();
+                    writeByte(BINARY);
+                    writeVarLong(value.length);
+                    writeBytes(value);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            } else if (node.isArray()) {
+                writeByte(ARRAY);
+                writeVarLong(node.size());
+                node.elements().forEachRemaining(this::writeNode);
+            } else if (node.isObject()) {
+                writeByte(OBJECT);
+                writeVarLong(node.size());
+                Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    writeName(field.getKey());
+                    writeNode(field.getValue());
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported node: " + node.getNodeType());
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void ensure(int length) {
+            if (position + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+            }
+        }
+
+    }
+
+    private static class Reader {
+
+        private final CommandDictionary dictionary;
+        private final List<String> locals = new ArrayList();
+        private final byte[] buffer;
+        private int position;
+
+        Reader(byte[] buffer, CommandDictionary dictionary) {
+            this.buffer = buffer;
+            this.dictionary = dictionary;
+        }
+
+        int readByte() {
+            return buffer[position++] & 0xFF;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        String readName() {
+            long ref = readVarLong();
+            if (ref == 0) {
+                String name = readString();
+                locals.add(name);
+                return name;
+            } else if ((ref & 1) != 0) {
+                return dictionary.get((int) (ref >>> 1));
+            } else {
+                return locals.get((int) (ref >>> 1) - 1);
+            }
+        }
+
+        JsonNode readNode() {
+            JsonNodeFactory nodes = JsonNodeFactory.instance;
+            int tag = readByte();
+            switch (tag) {
+                case NULL:
+                    return nodes.nullNode();
+                case TRUE:
+                    return nodes.booleanNode(true);
+                case FALSE:
+                    return nodes.booleanNode(false);
+                case LONG:
+                    long zigzag = readVarLong();
+                    long value = (zigzag >>> 1) ^ -(zigzag & 1);
+                    if (value == (int) value) {
+                        return nodes.numberNode((int) value);
+                    }
+                    return nodes.numberNode(value);
+                case DOUBLE:
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits = (bits << 8) | (buffer[position++] & 0xFF);
+                    }
+                    return nodes.numberNode(Double.longBitsToDouble(bits));
+                case TEXT:
+                    return nodes.textNode(readString());
+                case BINARY:
+                    int length = (int) readVarLong();
+                    byte[] binary = Arrays.copyOfRange(buffer, position, position + length);
+                    position += length;
+                    return nodes.binaryNode(binary);
+                case DECIMAL:
+                    return nodes.numberNode(new BigDecimal(readString()));
+                case BIG_INTEGER:
+                    return nodes.numberNode(new BigInteger(readString()));
+                case ARRAY:
+                    int elements = (int) readVarLong();
+                    ArrayNode array = nodes.arrayNode();
+                    for (int i = 0; i < elements; i++) {
+                        array.add(readNode());
+                    }
+                    return array;
+                case OBJECT:
+                    int fields = (int) readVarLong();
+                    ObjectNode object = nodes.objectNode();
+                    for (int i = 0; i < fields; i++) {
+                        String name = readName();
+                        object.set(name, readNode());
+                    }
+                    return object;
+            }
+            throw new IllegalArgumentException("Unknown node: " + tag);
+        }
+
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.model.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Append-only table of names shared by the events of one session.
+// Entries are only referenced once committed, i.e. once a snapshot holding them has been stored,
+// so every event can be decoded with the dictionary of the snapshot it follows.
+// Stored with every snapshot, so it stops growing at MAX_SIZE entries and later names are written as literals.
+public class CommandDictionary {
+
+    static final int MAX_SIZE = 1024;
+    static final int MAX_LENGTH = 256;
+
+    private final List<String> entries;
+    private final Map<String, Integer> index;
+    private volatile int committed;
+
+    public CommandDictionary() {
+        entries = new ArrayList();
+        index = new HashMap();
+    }
+
+    public static CommandDictionary fromByteArray(byte[] bytes) {
+        CommandDictionary dictionary = new CommandDictionary();
+        if (bytes != null) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    dictionary.add(in.readUTF());
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            dictionary.commit(dictionary.size());
+        }
+        return dictionary;
+    }
+
+    public byte[] toByteArray() {
+        try (ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(); DataOutputStream out = new DataOutputStream(bytesOut)) {
+            out.writeInt(entries.size());
+            for (String entry : entries) {
+                out.writeUTF(entry);
+            }
+            out.flush();
+            return bytesOut.toByteArray();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void commit(int size) {
+        if (size > committed) {
+            committed = size;
+        }
+    }
+
+    int lookup(String value) {
+        Integer i = index.get(value);
+        if (i != null && i < committed) {
+            return i;
+        }
+        return -1;
+    }
+
+    // Long names, e.g. free-form keys of inserted objects, are rarely repeated and stay literals
+    void add(String value) {
+        if (entries.size() < MAX_SIZE && value.length() <= MAX_LENGTH && !index.containsKey(value)) {
+            index.put(value, entries.size());
+            entries.add(value);
+        }
+    }
+
+    String get(int i) {
+        if (i >= entries.size()) {
+            throw new IllegalArgumentException("Unknown dictionary entry: " + i);
+        }
+        return entries.get(i);
+    }
+
+}
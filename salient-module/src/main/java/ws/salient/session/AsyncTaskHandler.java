@@ -37,7 +37,9 @@ public class AsyncTaskHandler implements WorkItemHandler {
     private final WorkItemHandler handler;
     private final String sessionId;
     private final Sessions sessions;
-    private final List<Long> completedWorkItemIds = new LinkedList();
+    private final LongHashSet completedWorkItemIds = new LongHashSet();
+    private final List<WorkItem> replayedWorkItems = new LinkedList();
+    private boolean replaying;
 
     public AsyncTaskHandler(String sessionId, WorkItemHandler handler, Sessions sessions) {
         this.handler = handler;
@@ -45,14 +47,28 @@ public class AsyncTaskHandler implements WorkItemHandler {
         this.sessions = sessions;
     }
 
-    public List<Long> getCompletedWorkItemIds() {
+    public LongHashSet getCompletedWorkItemIds() {
         return completedWorkItemIds;
     }
 
+    // While replaying, work items are held back until every event has been seen
+    public void setReplaying(boolean replaying) {
+        this.replaying = replaying;
+        if (!replaying) {
+            replayedWorkItems.forEach((workItem) -> {
+                executeWorkItem(workItem, null);
+            });
+            replayedWorkItems.clear();
+            completedWorkItemIds.clear();
+        }
+    }
+
     @Override
     public void executeWorkItem(WorkItem workItem, WorkItemManager manager) {
         if (completedWorkItemIds.contains(workItem.getId())) {
             log.info("Work item completed: " + workItem.getId());
+        } else if (replaying) {
+            replayedWorkItems.add(workItem);
         } else {
             CompletableFuture.runAsync(() -> {
                 MDC.put("sessionId", sessionId);
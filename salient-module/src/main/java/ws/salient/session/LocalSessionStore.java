@@ -0,0 +1,437 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.session;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Injector;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ws.salient.knowledge.KnowledgeBase;
+import ws.salient.knowledge.KnowledgeRepository;
+import ws.salient.model.Command;
+import ws.salient.model.codec.CommandCodec;
+import ws.salient.model.codec.CommandDictionary;
+
+// Session store for single node deployments, snapshots and events are appended to memory-mapped
+// segment files and located through an in-memory index rebuilt from the segments on start.
+// Segments mostly holding superseded records are compacted in the background.
+public class LocalSessionStore implements SessionStore {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalSessionStore.class);
+
+    private static final DateTimeFormatter NANO_INSTANT = new DateTimeFormatterBuilder()
+            .parseCaseInsensitive()
+            .appendInstant(9).toFormatter();
+
+    private static final int HEADER_SIZE = 8;
+    private static final byte SNAPSHOT = 1;
+    private static final byte EVENT = 2;
+
+    private final Path directory;
+    private final ObjectMapper json;
+    private final Map<String, Entry> index = new HashMap();
+    private final List<Segment> segments = new LinkedList();
+    private int segmentSize = 64 * 1024 * 1024;
+    private double compactionRatio = 0.5;
+    private ScheduledExecutorService maintenanceExecutor;
+    private Segment active;
+    private long nextSegmentId;
+
+    public LocalSessionStore(Path directory, ObjectMapper json) {
+        this.directory = directory;
+        this.json = json;
+        try {
+            Files.createDirectories(directory);
+            List<Path> paths = Files.list(directory)
+                    .filter((path) -> path.getFileName().toString().endsWith(".log"))
+                    .sorted()
+                    .collect(Collectors.toList());
+            for (Path path : paths) {
+                recover(path);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        log.info("Recovered sessions: " + index.size());
+    }
+
+    public LocalSessionStore withSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    // Segments with less than this share of live records are rewritten
+    public LocalSessionStore withCompactionRatio(double compactionRatio) {
+        this.compactionRatio = compactionRatio;
+        return this;
+    }
+
+    // Forces segments to disk and compacts them at the given interval
+    public LocalSessionStore withMaintenance(ScheduledExecutorService maintenanceExecutor, long intervalMillis) {
+        this.maintenanceExecutor = maintenanceExecutor;
+        maintenanceExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                sync();
+                compact();
+            } catch (RuntimeException ex) {
+                log.error("Session store maintenance failed", ex);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    @Override
+    public void put(Session session, Command command, int requestIndex) {
+        try {
+            CommandDictionary dictionary = session.getDictionary();
+            CommandCodec codec = new CommandCodec(session.getKnowledgeBase().getJson());
+            String timestamp = NANO_INSTANT.format(command.getTimestamp().plusNanos(requestIndex));
+            byte[] event = record(EVENT, session.getSessionId(), timestamp, (out) -> {
+                writeBytes(out, codec.encode(command, dictionary));
+                writeNullable(out, command.getShardId());
+                writeNullable(out, command.getSequenceNumber());
+            });
+            synchronized (this) {
+                index(session.getSessionId(), EVENT, timestamp, append(event));
+            }
+            if (session.store(command)) {
+                int dictionarySize = dictionary.size();
+                byte[] snapshot = record(SNAPSHOT, session.getSessionId(), timestamp, (out) -> {
+                    out.writeUTF(command.getKnowledgeBaseId());
+                    writeBytes(out, json.writeValueAsBytes(session.getProperties()));
+                    writeBytes(out, dictionary.toByteArray());
+                    writeBytes(out, session.toByteArray());
+                    out.writeInt(session.getSequenceNumbers().size());
+                    for (Map.Entry<String, String> sequenceNumber : session.getSequenceNumbers().entrySet()) {
+                        out.writeUTF(sequenceNumber.getKey());
+                        out.writeUTF(sequenceNumber.getValue());
+                    }
+                });
+                synchronized (this) {
+                    index(session.getSessionId(), SNAPSHOT, timestamp, append(snapshot));
+                }
+                dictionary.commit(dictionarySize);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public Session get(Command command, KnowledgeRepository repository, Properties properties, Injector parentInjector, Sessions sessions) {
+        Location snapshot;
+        List<Location> events;
+        synchronized (this) {
+            Entry entry = index.get(command.getSessionId());
+            if (entry == null || entry.snapshot == null) {
+                return SessionStore.super.get(command, repository, properties, parentInjector, sessions);
+            }
+            snapshot = entry.snapshot;
+            events = new ArrayList(entry.events.values());
+        }
+        try (DataInputStream in = read(snapshot)) {
+            String timestamp = in.readUTF();
+            KnowledgeBase knowledgeBase = repository.getKnowledgeBase(in.readUTF());
+            properties = json.readValue(readBytes(in), Properties.class);
+            CommandDictionary dictionary = CommandDictionary.fromByteArray(readBytes(in));
+            byte[] sessionBytes = readBytes(in);
+            Map<String, String> sequenceNumbers = new HashMap();
+            int shards = in.readInt();
+            for (int i = 0; i < shards; i++) {
+                sequenceNumbers.put(in.readUTF(), in.readUTF());
+            }
+            CommandCodec codec = new CommandCodec(knowledgeBase.getJson());
+
+            Session session = new Session(command.getSessionId());
+            session.init(knowledgeBase, properties, parentInjector, Instant.parse(timestamp), sessionBytes, sessions);
+            session.setDictionary(dictionary);
+            session.setSequenceNumbers(sequenceNumbers);
+            session.setReplaying(true);
+            for (Location event : events) {
+                try (DataInputStream eventIn = read(event)) {
+                    eventIn.readUTF();
+                    Command replayed = codec.decode(readBytes(eventIn), dictionary);
+                    replayed.setShardId(readNullable(eventIn));
+                    replayed.setSequenceNumber(readNullable(eventIn));
+                    session.accept(replayed);
+                }
+            }
+            session.setReplaying(false);
+            return session;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public synchronized void sync() {
+        if (active != null) {
+            active.buffer.force();
+        }
+    }
+
+    // Rewrites the live records of sealed segments that are mostly superseded
+    public synchronized void compact() {
+        List<Segment> sparse = segments.stream()
+                .filter((segment) -> segment != active && segment.live < segment.written * compactionRatio)
+                .collect(Collectors.toList());
+        if (sparse.isEmpty()) {
+            return;
+        }
+        for (Entry entry : index.values()) {
+            if (entry.snapshot != null && sparse.contains(entry.snapshot.segment)) {
+                entry.snapshot = copy(entry.snapshot);
+            }
+            for (Map.Entry<String, Location> event : entry.events.entrySet()) {
+                if (sparse.contains(event.getValue().segment)) {
+                    event.setValue(copy(event.getValue()));
+                }
+            }
+        }
+        sync();
+        for (Segment segment : sparse) {
+            segments.remove(segment);
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException ex) {
+                log.error("Failed to delete segment: " + segment.path, ex);
+            }
+        }
+        log.info("Compacted segments: " + sparse.size());
+    }
+
+    @Override
+    public void shutdown() {
+        if (maintenanceExecutor != null) {
+            maintenanceExecutor.shutdown();
+        }
+        sync();
+    }
+
+    private Location copy(Location location) {
+        ByteBuffer buffer = location.segment.buffer.duplicate();
+        buffer.position(location.offset + HEADER_SIZE);
+        buffer.limit(location.offset + location.length);
+        byte[] body = new byte[location.length - HEADER_SIZE];
+        buffer.get(body);
+        location.segment.live -= location.length;
+        return append(body);
+    }
+
+    private void index(String sessionId, byte type, String timestamp, Location location) {
+        Entry entry = index.computeIfAbsent(sessionId, (id) -> new Entry());
+        if (type == SNAPSHOT) {
+            if (entry.snapshotTimestamp != null && entry.snapshotTimestamp.compareTo(timestamp) >= 0) {
+                // Copy of a snapshot already indexed, left behind by an interrupted compaction
+                location.segment.live -= location.length;
+                return;
+            }
+            if (entry.snapshot != null) {
+                entry.snapshot.segment.live -= entry.snapshot.length;
+            }
+            entry.snapshot = location;
+            entry.snapshotTimestamp = timestamp;
+            // Events up to the snapshot are part of it
+            NavigableMap<String, Location> covered = entry.events.headMap(timestamp, true);
+            covered.values().forEach((event) -> {
+                event.segment.live -= event.length;
+            });
+            covered.clear();
+        } else if ((entry.snapshotTimestamp != null && entry.snapshotTimestamp.compareTo(timestamp) >= 0)
+                || entry.events.containsKey(timestamp)) {
+            location.segment.live -= location.length;
+        } else {
+            entry.events.put(timestamp, location);
+        }
+    }
+
+    private Location append(byte[] body) {
+        int length = HEADER_SIZE + body.length;
+        if (active == null || active.buffer.remaining() < length + HEADER_SIZE) {
+            roll(length + HEADER_SIZE);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        int offset = active.buffer.position();
+        active.buffer.putInt(body.length);
+        active.buffer.putInt((int) crc.getValue());
+        active.buffer.put(body);
+        active.written += length;
+        active.live += length;
+        return new Location(active, offset, length);
+    }
+
+    private void roll(int minimumSize) {
+        if (active != null) {
+            active.buffer.force();
+        }
+        Path path = directory.resolve(String.format("%020d.log", nextSegmentId++));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            active = new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, minimumSize)));
+            segments.add(active);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void recover(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        nextSegmentId = Math.max(nextSegmentId, Long.parseLong(name.substring(0, name.length() - ".log".length())) + 1);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Segment segment = new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            segments.add(segment);
+            ByteBuffer buffer = segment.buffer;
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int offset = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                buffer.get(body);
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Corrupt record in segment " + path + " at " + offset);
+                    break;
+                }
+                segment.written += HEADER_SIZE + length;
+                segment.live += HEADER_SIZE + length;
+                try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+                    byte type = in.readByte();
+                    String sessionId = in.readUTF();
+                    String timestamp = in.readUTF();
+                    index(sessionId, type, timestamp, new Location(segment, offset, HEADER_SIZE + length));
+                }
+            }
+        }
+    }
+
+    // Positions the stream after the type and sessionId of the record
+    private DataInputStream read(Location location) throws IOException {
+        ByteBuffer buffer = location.segment.buffer.duplicate();
+        buffer.position(location.offset + HEADER_SIZE);
+        byte[] body = new byte[location.length - HEADER_SIZE];
+        buffer.get(body);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        in.readByte();
+        in.readUTF();
+        return in;
+    }
+
+    private byte[] record(byte type, String sessionId, String timestamp, RecordWriter writer) throws IOException {
+        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream(); DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            out.writeUTF(sessionId);
+            out.writeUTF(timestamp);
+            writer.write(out);
+            out.flush();
+            return bytes.toByteArray();
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        return value;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private interface RecordWriter {
+
+        void write(DataOutputStream out) throws IOException;
+
+    }
+
+    private static class Entry {
+
+        private Location snapshot;
+        private String snapshotTimestamp;
+        private final TreeMap<String, Location> events = new TreeMap();
+
+    }
+
+    private static class Location {
+
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+    private static class Segment {
+
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private long written;
+        private long live;
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+    }
+
+}
@@ -27,6 +27,7 @@ import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -35,6 +36,7 @@ import java.util.Optional;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
 import javax.crypto.spec.SecretKeySpec;
 import org.drools.core.impl.InternalKnowledgeBase;
@@ -69,9 +71,11 @@ import ws.salient.knowledge.KnowledgeBase;
 import static ws.salient.knowledge.SerializableStrategy.Format.FST;
 import static ws.salient.knowledge.SerializableStrategy.Format.JAVA;
 import ws.salient.model.Command;
+import ws.salient.model.codec.CommandDictionary;
 import ws.salient.model.commands.AbortWorkItem;
 import ws.salient.model.commands.CompleteWorkItem;
 import ws.salient.model.commands.Insert;
+import ws.salient.model.commands.WorkItem;
 import ws.salient.model.commands.WorkItemException;
 
 public class Session {
@@ -82,6 +86,8 @@ public class Session {
 
     private StatefulKnowledgeSessionImpl ksession;
     private KnowledgeBase knowledgeBase;
+    // Knowledge base this session holds a reference on, released on dispose
+    private KnowledgeBase referenced;
 
     private AtomicLong eventCounter;
 
@@ -89,7 +95,12 @@ public class Session {
     private Properties properties;
     private ByteBuffer encryptedKey;
     private SecretKeySpec secretKey;
+    private Map<String, String> encryptionContext;
     private List<AsyncTaskHandler> workItemHandlers = new LinkedList();
+    private CommandDictionary dictionary = new CommandDictionary();
+    private boolean replaying;
+    // Highest sequence number applied from each source shard
+    private Map<String, String> sequenceNumbers = new HashMap();
 
     public Session(String sessionId) {
         this.sessionId = sessionId;
@@ -101,6 +112,11 @@ public class Session {
 
     public void init(KnowledgeBase knowledgeBase, Properties properties, Injector parentInjector, Instant instant, byte[] sessionBytes, Sessions sessions) {
         
+        knowledgeBase.acquire();
+        if (referenced != null) {
+            referenced.release();
+        }
+        referenced = knowledgeBase;
         this.knowledgeBase = knowledgeBase;
         this.properties = properties;
         eventCounter = null;
@@ -165,6 +181,62 @@ public class Session {
         this.secretKey = secretKey;
     }    
 
+    public CommandDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public void setDictionary(CommandDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public boolean isReplaying() {
+        return replaying;
+    }
+
+    // Replayed events were logged when first accepted and their work items already dispatched
+    public void setReplaying(boolean replaying) {
+        this.replaying = replaying;
+        workItemHandlers.forEach((handler) -> {
+            handler.setReplaying(replaying);
+        });
+    }
+
+    public Map<String, String> getSequenceNumbers() {
+        return sequenceNumbers;
+    }
+
+    public void setSequenceNumbers(Map<String, String> sequenceNumbers) {
+        this.sequenceNumbers = new HashMap(sequenceNumbers);
+    }
+
+    // Redelivered records carry a sequence number at or below the one already applied
+    public boolean isApplied(Command command) {
+        if (command.getShardId() == null || command.getSequenceNumber() == null) {
+            return false;
+        }
+        String applied = sequenceNumbers.get(command.getShardId());
+        return applied != null && compareSequenceNumbers(command.getSequenceNumber(), applied) <= 0;
+    }
+
+    // Sequence numbers are unbounded decimal strings, aggregated records append a subsequence number after a dot
+    protected static int compareSequenceNumbers(String left, String right) {
+        int leftDot = left.indexOf('.');
+        int rightDot = right.indexOf('.');
+        int leftLength = leftDot < 0 ? left.length() : leftDot;
+        int rightLength = rightDot < 0 ? right.length() : rightDot;
+        if (leftLength != rightLength) {
+            return Integer.compare(leftLength, rightLength);
+        }
+        for (int i = 0; i < leftLength; i++) {
+            if (left.charAt(i) != right.charAt(i)) {
+                return Character.compare(left.charAt(i), right.charAt(i));
+            }
+        }
+        long leftSubsequence = leftDot < 0 ? -1 : Long.parseLong(left.substring(leftDot + 1));
+        long rightSubsequence = rightDot < 0 ? -1 : Long.parseLong(right.substring(rightDot + 1));
+        return Long.compare(leftSubsequence, rightSubsequence);
+    }
+
     public KnowledgeBase getKnowledgeBase() {
         return knowledgeBase;
     }
@@ -177,6 +249,14 @@ public class Session {
         this.encryptedKey = encryptedKey;
     }
 
+    public Map<String, String> getEncryptionContext() {
+        return encryptionContext;
+    }
+
+    public void setEncryptionContext(Map<String, String> encryptionContext) {
+        this.encryptionContext = encryptionContext;
+    }
+
     protected void insertAll(List inserts) {
         if (ksession != null) {
             inserts.forEach((object) -> {
@@ -285,9 +365,23 @@ public class Session {
 
     public void dispose() {
         ksession.dispose();
+        if (referenced != null) {
+            referenced.release();
+            referenced = null;
+        }
     }
 
     public void update(KnowledgeBase knowledgeBase, Properties properties, Injector parentInjector, Instant instant, Sessions sessions) {
+        if (knowledgeBase.getBase() == this.knowledgeBase.getBase() && properties.equals(this.properties)) {
+            // Upgraded in place, working memory already runs on the new version
+            knowledgeBase.acquire();
+            if (referenced != null) {
+                referenced.release();
+            }
+            referenced = knowledgeBase;
+            this.knowledgeBase = knowledgeBase;
+            return;
+        }
         try (ByteArrayOutputStream sessionOut = new ByteArrayOutputStream()) {
             // FST serialization only works if objects are unchanged
             if (this.knowledgeBase.equals(knowledgeBase)) {
@@ -304,7 +398,18 @@ public class Session {
     }
 
     public boolean hasChanged(KnowledgeBase knowledgeBase, Properties properties) {
-        return !(knowledgeBase.equals(this.knowledgeBase) && properties.equals(this.properties));
+        if (!knowledgeBase.equals(this.knowledgeBase)) {
+            return true;
+        }
+        if (properties == this.properties) {
+            return false;
+        }
+        if (properties.equals(this.properties)) {
+            // Keep the resolved instance, later commands compare by reference
+            this.properties = properties;
+            return false;
+        }
+        return true;
     }
 
     public SessionPseudoClock getClock() {
@@ -328,15 +433,43 @@ public class Session {
     }
 
     public final void accept(Command request) {
-        Instant instant = request.getTimestamp();
-        MDC.put("sessionId", sessionId);
-        MDC.put("instant", instant.toString());
+        if (replaying && isApplied(request)) {
+            // Event stored twice, e.g. by both workers around a lease handoff, is applied once
+            return;
+        }
+        // The knowledge base is not upgraded in place while rules fire
+        Lock lock = knowledgeBase.getReadLock();
+        lock.lock();
         try {
-            log.info(knowledgeBase.getJson().writeValueAsString(request));
-        } catch (JsonProcessingException ex) {
+            apply(request);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void apply(Command request) {
+        Instant instant = request.getTimestamp();
+        if (request.getShardId() != null && request.getSequenceNumber() != null && !isApplied(request)) {
+            sequenceNumbers.put(request.getShardId(), request.getSequenceNumber());
+        }
+        if (replaying) {
+            if (request instanceof WorkItem) {
+                long workItemId = ((WorkItem) request).getWorkItemId();
+                workItemHandlers.forEach((handler) -> {
+                    handler.getCompletedWorkItemIds().add(workItemId);
+                });
+            }
+        } else {
+            MDC.put("sessionId", sessionId);
+            MDC.put("instant", instant.toString());
+            try {
+                log.info(knowledgeBase.getJson().writeValueAsString(request));
+            } catch (JsonProcessingException ex) {
+            }
         }
         long sessionTime = getClock().getCurrentTime();
         long advanceTime = instant.toEpochMilli() - sessionTime;
+        // Rules fire before each command, replayed or not, so replay reaches the same state as live processing
         getClock().advanceTime(advanceTime, TimeUnit.MILLISECONDS);
         ksession.fireAllRules();
         if (request instanceof Insert) {
@@ -395,12 +528,16 @@ public class Session {
     }
     
     public byte[] toByteArray() {
+        Lock lock = knowledgeBase.getReadLock();
+        lock.lock();
         try (ByteArrayOutputStream sessionOut = new ByteArrayOutputStream()) {
             knowledgeBase.getMarshaller().marshall(sessionOut, ksession);
             byte[] sessionBytes = sessionOut.toByteArray();
             return sessionBytes;
         } catch (IOException ex) {
             throw new RuntimeException(ex);
+        } finally {
+            lock.unlock();
         }
     }
 }
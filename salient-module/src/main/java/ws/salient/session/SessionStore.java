@@ -17,7 +17,11 @@
 package ws.salient.session;
 
 import com.google.inject.Injector;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.function.Function;
 import ws.salient.knowledge.KnowledgeBase;
 import ws.salient.knowledge.KnowledgeRepository;
 import ws.salient.model.Command;
@@ -34,6 +38,15 @@ public interface SessionStore {
         return session;
     }
     
+    // Loads every session of a batch that is not yet cached, keyed by sessionId
+    public default Map<String, Session> getAll(Collection<Command> commands, KnowledgeRepository repository, Function<Command, Properties> properties, Injector parentInjector, Sessions sessions) {
+        Map<String, Session> loaded = new LinkedHashMap();
+        commands.forEach((command) -> {
+            loaded.put(command.getSessionId(), get(command, repository, properties.apply(command), parentInjector, sessions));
+        });
+        return loaded;
+    }
+
     public default void shutdown() {
     }
     
@@ -20,10 +20,13 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Injector;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -56,6 +59,8 @@ public class Sessions {
     
     private final Injector injector;
 
+    private volatile boolean warmingUp;
+
     // Executors
     protected final ExecutorService commandExecutor;
     protected final ExecutorService workItemExecutor;
@@ -108,7 +113,7 @@ public class Sessions {
                     .filter(command -> command.getKnowledgeBaseId() != null)
                     .forEach((command) -> {
                         String knowledgeBaseId = command.getKnowledgeBaseId();
-                        Map<String, String> aliases = profiles.getAliases(command.getAccountId(), command.getProfiles());
+                        Map<String, String> aliases = profiles.resolve(command.getAccountId(), command.getProfiles()).getAliases();
                         if (aliases.containsKey(knowledgeBaseId)) {
                             knowledgeBaseId = aliases.get(knowledgeBaseId);
                         }
@@ -133,7 +138,27 @@ public class Sessions {
                     }).collect(Collectors.toList());
             CompletableFuture.allOf(knowledgeBases.toArray(new CompletableFuture[knowledgeBases.size()])).get();
 
-            // Load sessions in parallel
+            // Load cold sessions together
+            List<Command> sessionBound = commands.stream()
+                    .filter(command -> command.getSessionId() != null && command.getKnowledgeBaseId() != null)
+                    .collect(Collectors.toList());
+            List<Command> coldCommands = sessionBound.stream()
+                    .filter(command -> !this.sessions.containsKey(command.getSessionId()))
+                    .collect(Collectors.toMap(Command::getSessionId, (command) -> command, (first, next) -> first, LinkedHashMap::new))
+                    .values().stream().collect(Collectors.toList());
+            if (warmingUp && !sessionBound.isEmpty() && coldCommands.isEmpty()) {
+                // Live traffic only touches resident sessions, preloading has caught up
+                log.info("Stopping warmup");
+                warmingUp = false;
+            }
+            if (!coldCommands.isEmpty()) {
+                log.info("Loading sessions: " + coldCommands.size());
+                store.getAll(coldCommands, repository, (command) -> {
+                    return profiles.resolve(command.getAccountId(), command.getProfiles()).getProperties();
+                }, injector, this).forEach(this::cache);
+            }
+
+            // Update loaded sessions in parallel
             List<CompletableFuture<Session>> sessions = commands.stream()
                     .filter(command -> command.getSessionId() != null)
                     .collect(Collectors.groupingBy((command) -> {
@@ -153,6 +178,10 @@ public class Sessions {
                     if (command.getSessionId() != null) {
                         command.setTimestamp(now);
                         Session session = getSession(command);
+                        if (session.isApplied(command)) {
+                            log.info("Skipping redelivered command " + command.getShardId() + ":" + command.getSequenceNumber());
+                            continue;
+                        }
                         session.accept(command);
                         store.put(session, command, requestIndex);
                         requestIndex++;
@@ -177,6 +206,57 @@ public class Sessions {
         return result;
     }
 
+    // Loads every knowledge base referenced by profile aliases in parallel, failures are logged and skipped
+    public CompletableFuture prewarm() {
+        Set<String> knowledgeBaseIds = profiles.getKnowledgeBaseIds();
+        log.info("Prewarming knowledge bases: " + knowledgeBaseIds);
+        List<CompletableFuture<KnowledgeBase>> loads = knowledgeBaseIds.stream().map((knowledgeBaseId) -> {
+            return repository.getKnowledgeBaseAsync(knowledgeBaseId).exceptionally((ex) -> {
+                log.error("Failed to prewarm knowledge base: " + knowledgeBaseId, ex);
+                return null;
+            });
+        }).collect(Collectors.toList());
+        return CompletableFuture.allOf(loads.toArray(new CompletableFuture[loads.size()])).whenComplete((result, ex) -> {
+            log.info("Prewarm complete");
+        });
+    }
+
+    // Knowledge bases targeted by an alias are kept even when no session uses them
+    public void evictKnowledgeBases(Duration gracePeriod) {
+        repository.evict(profiles.getKnowledgeBaseIds(), gracePeriod);
+    }
+
+    // Loads sessions ahead of their first command, with concurrency bounded by the executor, which stays owned by the caller
+    public CompletableFuture warmup(List<Command> commands, ExecutorService warmupExecutor) {
+        warmingUp = true;
+        log.info("Warming up sessions: " + commands.size());
+        List<CompletableFuture<Void>> loads = commands.stream().map((command) -> {
+            return CompletableFuture.runAsync(() -> {
+                if (warmingUp && !sessions.containsKey(command.getSessionId())) {
+                    Properties properties = profiles.resolve(command.getAccountId(), command.getProfiles()).getProperties();
+                    cache(command.getSessionId(), store.get(command, repository, properties, injector, this));
+                }
+            }, warmupExecutor).exceptionally((ex) -> {
+                log.error("Failed to warm up session: " + command.getSessionId(), ex);
+                return null;
+            });
+        }).collect(Collectors.toList());
+        return CompletableFuture.allOf(loads.toArray(new CompletableFuture[loads.size()])).whenComplete((result, ex) -> {
+            warmingUp = false;
+            log.info("Warmup complete, session count " + sessions.size());
+        });
+    }
+
+    // Keeps the first loaded instance when a session is loaded twice, returns the instance kept
+    private Session cache(String sessionId, Session session) {
+        Session cached = sessions.putIfAbsent(sessionId, session);
+        if (cached != null) {
+            session.dispose();
+            return cached;
+        }
+        return session;
+    }
+
     public ExecutorService getWorkItemExecutor() {
         return workItemExecutor;
     }
@@ -188,13 +268,12 @@ public class Sessions {
         Session session = sessions.get(command.getSessionId());
         KnowledgeBase knowledgeBase = null;
         if (command.getKnowledgeBaseId() != null) {
-            properties = profiles.getProperties(command.getAccountId(), command.getProfiles());
+            properties = profiles.resolve(command.getAccountId(), command.getProfiles()).getProperties();
             knowledgeBase = repository.getKnowledgeBase(command.getKnowledgeBaseId());
         }
 
         if (session == null && command.getKnowledgeBaseId() != null) {
-            session = store.get(command, repository, properties, injector, this);
-            sessions.put(command.getSessionId(), session);
+            session = cache(command.getSessionId(), store.get(command, repository, properties, injector, this));
         }
 
         if (session != null && knowledgeBase != null && session.hasChanged(knowledgeBase, properties)) {
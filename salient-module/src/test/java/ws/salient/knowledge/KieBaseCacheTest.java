@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.knowledge;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kie.api.KieBase;
+import org.kie.api.KieServices;
+import org.kie.api.runtime.KieContainer;
+import org.kie.api.runtime.KieSession;
+import org.kie.api.runtime.process.WorkItemHandler;
+import static org.mockito.Mockito.mock;
+import ws.salient.examples.chat.Chat;
+import ws.salient.examples.chat.Message;
+import ws.salient.examples.chat.Message.Intent;
+
+public class KieBaseCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    KieContainer kcontainer;
+    KieBase kbase;
+    KieBaseCache cache;
+
+    @Before
+    public void before() {
+        kcontainer = KieServices.Factory.get().getKieClasspathContainer();
+        kbase = kcontainer.getKieBase("ws.salient.examples.chat");
+        cache = new KieBaseCache(folder.getRoot().toPath());
+    }
+
+    @Test
+    public void loadStoredKieBase() {
+        cache.store(kcontainer.getReleaseId(), "ws.salient.examples.chat", "checksum", kbase);
+        assertTrue(cache.getPath(kcontainer.getReleaseId(), "ws.salient.examples.chat").toFile().exists());
+
+        KieBase loaded = cache.load(kcontainer.getReleaseId(), "ws.salient.examples.chat", "checksum", kcontainer.getClassLoader());
+        assertNotNull(loaded);
+
+        KieSession ksession = loaded.newKieSession();
+        ksession.setGlobal("chat", new Chat(ksession, Locale.US, kcontainer.getClassLoader()));
+        ksession.getWorkItemManager().registerWorkItemHandler("ws.salient.examples.chat.FunctionHandler", mock(WorkItemHandler.class));
+        ksession.insert(new Message("hi", Intent.HELLO));
+        ksession.fireAllRules();
+        assertEquals(1, ksession.getProcessInstances().size());
+    }
+
+    @Test
+    public void ignoreStaleKieBase() {
+        cache.store(kcontainer.getReleaseId(), "ws.salient.examples.chat", "checksum", kbase);
+
+        assertNull(cache.load(kcontainer.getReleaseId(), "ws.salient.examples.chat", "changed", kcontainer.getClassLoader()));
+        assertFalse(cache.getPath(kcontainer.getReleaseId(), "ws.salient.examples.chat").toFile().exists());
+    }
+
+    @Test
+    public void checksumJarContents() throws Exception {
+        Path jar = folder.newFile("kjar.jar").toPath();
+        Files.write(jar, new byte[]{1, 2, 3});
+        String checksum = KieBaseCache.checksum(jar);
+        assertEquals(64, checksum.length());
+        assertEquals(checksum, KieBaseCache.checksum(jar));
+
+        Files.write(jar, new byte[]{1, 2, 4});
+        assertNotEquals(checksum, KieBaseCache.checksum(jar));
+        assertNull(KieBaseCache.checksum(folder.getRoot().toPath().resolve("missing.jar")));
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.knowledge;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KnowledgeBaseTest {
+
+    @Test
+    public void keepReferencedKnowledgeBase() {
+        KnowledgeBase knowledgeBase = new KnowledgeBase("kbase");
+        knowledgeBase.acquire();
+        assertFalse(knowledgeBase.disposeIfIdle(System.currentTimeMillis() + 1000));
+
+        knowledgeBase.release();
+        assertTrue(knowledgeBase.disposeIfIdle(System.currentTimeMillis() + 1000));
+    }
+
+    @Test
+    public void keepRecentlyTouchedKnowledgeBase() {
+        KnowledgeBase knowledgeBase = new KnowledgeBase("kbase");
+        long idleSince = System.currentTimeMillis() - 1000;
+        assertTrue(knowledgeBase.touch());
+        assertFalse(knowledgeBase.disposeIfIdle(idleSince));
+    }
+
+    @Test
+    public void updateOnceRulesStopFiring() throws Exception {
+        KnowledgeBase knowledgeBase = new KnowledgeBase("kbase");
+        KnowledgeBase upgraded = knowledgeBase.upgradeTo(null, null);
+        // A session of the previous instance is firing rules
+        Lock firing = knowledgeBase.getReadLock();
+        firing.lock();
+        CompletableFuture<String> update = CompletableFuture.supplyAsync(() -> upgraded.update(() -> "updated"));
+        Thread.sleep(100);
+        assertFalse(update.isDone());
+
+        firing.unlock();
+        assertEquals("updated", update.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failAcquireOnDisposedKnowledgeBase() {
+        KnowledgeBase knowledgeBase = new KnowledgeBase("kbase");
+        assertTrue(knowledgeBase.disposeIfIdle(System.currentTimeMillis() + 1000));
+        assertFalse(knowledgeBase.touch());
+        knowledgeBase.acquire();
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.model.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.time.Instant;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import ws.salient.examples.chat.Message;
+import ws.salient.examples.chat.Message.Intent;
+import ws.salient.model.Command;
+import ws.salient.model.commands.AbortWorkItem;
+import ws.salient.model.commands.CompleteWorkItem;
+import ws.salient.model.commands.Insert;
+import ws.salient.model.commands.WorkItemException;
+
+public class CommandCodecTest {
+
+    ObjectMapper json;
+    CommandCodec codec;
+    CommandDictionary dictionary;
+    Instant now;
+
+    @Before
+    public void before() {
+        json = new ObjectMapper().findAndRegisterModules();
+        codec = new CommandCodec(json);
+        dictionary = new CommandDictionary();
+        now = Instant.now();
+    }
+
+    @Test
+    public void insertCommand() throws Exception {
+
+        Command command = insert();
+        command = codec.decode(codec.encode(command, dictionary), dictionary);
+
+        assertTrue(command instanceof Insert);
+        Insert insert = (Insert) command;
+
+        assertEquals("session", insert.getSessionId());
+        assertEquals("account", insert.getAccountId());
+        assertEquals("ws.salient:salient:1.0.0:ws.salient.examples.chat",
+                insert.getKnowledgeBaseId());
+        assertEquals(1, insert.getProfiles().size());
+        assertEquals("default", insert.getProfiles().get(0));
+        assertEquals(now, command.getTimestamp());
+        assertNotNull(insert.getObjects());
+        assertEquals(1, insert.getObjects().size());
+        Message message = json.convertValue(insert.getObjects().get(0).get("ws.salient.examples.chat.Message"), Message.class);
+        assertEquals("hi", message.getText());
+        assertEquals(Intent.HELLO, message.getIntent());
+
+    }
+
+    @Test
+    public void committedDictionary() throws Exception {
+
+        byte[] literal = codec.encode(insert(), dictionary);
+
+        // Snapshot stored, names are now referenced from the dictionary
+        CommandDictionary stored = CommandDictionary.fromByteArray(dictionary.toByteArray());
+        dictionary.commit(dictionary.size());
+
+        byte[] referenced = codec.encode(insert(), dictionary);
+        assertTrue(referenced.length < literal.length);
+
+        Insert insert = (Insert) codec.decode(referenced, stored);
+        assertEquals("account", insert.getAccountId());
+        assertEquals("default", insert.getProfiles().get(0));
+        assertEquals(1, insert.getObjects().size());
+
+    }
+
+    @Test
+    public void boundedDictionary() throws Exception {
+
+        // Free-form payload with a new field name in every command
+        for (int i = 0; i < CommandDictionary.MAX_SIZE + 100; i++) {
+            Command command = new Insert("session")
+                    .withObjects(json.createArrayNode().add(json.createObjectNode().put("field" + i, i)))
+                    .withTimestamp(now);
+            codec.encode(command, dictionary);
+        }
+        assertEquals(CommandDictionary.MAX_SIZE, dictionary.size());
+        dictionary.commit(dictionary.size());
+
+        // Names beyond the dictionary are still encoded, as literals
+        Command command = new Insert("session")
+                .withObjects(json.createArrayNode().add(json.createObjectNode().put("overflow", 1)))
+                .withTimestamp(now);
+        Insert insert = (Insert) codec.decode(codec.encode(command, dictionary), CommandDictionary.fromByteArray(dictionary.toByteArray()));
+        assertEquals(1, insert.getObjects().get(0).get("overflow").intValue());
+
+    }
+
+    @Test
+    public void completeWorkItemCommand() throws Exception {
+
+        Command command = new CompleteWorkItem(1L, "session")
+                .withResult(Collections.singletonMap("success", Boolean.TRUE))
+                .withTimestamp(now);
+
+        command = codec.decode(codec.encode(command, dictionary), dictionary);
+
+        assertTrue(command instanceof CompleteWorkItem);
+        CompleteWorkItem completeWorkItem = (CompleteWorkItem) command;
+
+        assertEquals("session", completeWorkItem.getSessionId());
+        assertEquals(now, command.getTimestamp());
+        assertEquals(new Long(1), completeWorkItem.getWorkItemId());
+        assertTrue((Boolean) completeWorkItem.getResult().get("success"));
+
+    }
+
+    @Test
+    public void abortWorkItemCommand() throws Exception {
+
+        Command command = new AbortWorkItem(1L, "session")
+                .withTimestamp(now);
+
+        command = codec.decode(codec.encode(command, dictionary), dictionary);
+
+        assertTrue(command instanceof AbortWorkItem);
+        assertEquals(now, command.getTimestamp());
+        assertEquals(new Long(1), ((AbortWorkItem) command).getWorkItemId());
+
+    }
+
+    @Test
+    public void workItemExceptionCommand() throws Exception {
+
+        Command command = new WorkItemException(1L, "session")
+                .withException(new RuntimeException("Error"))
+                .withTimestamp(now);
+
+        command = codec.decode(codec.encode(command, dictionary), dictionary);
+
+        assertTrue(command instanceof WorkItemException);
+        WorkItemException workItemException = (WorkItemException) command;
+        assertEquals(new Long(1), workItemException.getWorkItemId());
+        assertTrue(workItemException.getException() instanceof RuntimeException);
+
+    }
+
+    @Test
+    public void jsonCommand() throws Exception {
+
+        Command command = codec.decode(json.writeValueAsBytes(insert()), dictionary);
+
+        assertTrue(command instanceof Insert);
+        assertEquals("session", command.getSessionId());
+        assertEquals(now, command.getTimestamp());
+
+    }
+
+    private Command insert() {
+        return new Insert("session")
+                .withObjects(json.createArrayNode().add(json.createObjectNode()
+                        .putPOJO("ws.salient.examples.chat.Message",
+                                new Message("hi", Intent.HELLO))))
+                .withAccountId("account")
+                .withKnowledgeBaseId("ws.salient:salient:1.0.0:ws.salient.examples.chat")
+                .withProfile("default")
+                .withTimestamp(now);
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.session;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Guice;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ws.salient.account.Profiles;
+import ws.salient.examples.chat.Message;
+import ws.salient.knowledge.ClasspathRepository;
+import ws.salient.model.Command;
+import ws.salient.model.commands.Insert;
+
+public class LocalSessionStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    ObjectMapper json;
+    ThreadPoolExecutor executor;
+    Path directory;
+
+    @Before
+    public void before() {
+        executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+        json = new ObjectMapper();
+        directory = folder.getRoot().toPath();
+    }
+
+    @Test
+    public void restoreSession() throws Exception {
+
+        LocalSessionStore store = new LocalSessionStore(directory, json);
+        Sessions sessions = sessions(store);
+        sessions.execute(Arrays.asList(hello()));
+        sessions.execute(Arrays.asList(hello()));
+        finish();
+        Map<String, Long> factCount = sessions.getSession(hello()).getFactCount();
+        store.shutdown();
+
+        Session session = sessions(new LocalSessionStore(directory, json)).getSession(hello());
+        assertEquals(factCount, session.getFactCount());
+
+    }
+
+    @Test
+    public void compactSegments() throws Exception {
+
+        LocalSessionStore store = new LocalSessionStore(directory, json)
+                .withSegmentSize(1024);
+        Sessions sessions = sessions(store);
+        sessions.execute(Arrays.asList(hello()));
+        sessions.execute(Arrays.asList(hello()));
+        finish();
+        Map<String, Long> factCount = sessions.getSession(hello()).getFactCount();
+
+        long segments = Files.list(directory).count();
+        store.compact();
+        assertTrue(Files.list(directory).count() < segments);
+        store.shutdown();
+
+        Session session = sessions(new LocalSessionStore(directory, json)).getSession(hello());
+        assertEquals(factCount, session.getFactCount());
+
+    }
+
+    @Test
+    public void replayMatchesLiveSession() throws Exception {
+
+        LocalSessionStore store = new LocalSessionStore(directory, json);
+        Sessions sessions = sessions(store);
+        // Events after the first snapshot are replayed, commands of a batch share a millisecond
+        sessions.execute(Arrays.asList(hello()));
+        sessions.execute(Arrays.asList(hello(), hello(), hello()));
+        Thread.sleep(10);
+        sessions.execute(Arrays.asList(hello(), hello()));
+        finish();
+        Session live = sessions.getSession(hello());
+        Map<String, Long> factCount = live.getFactCount();
+        int processCount = live.getProcessCount();
+        store.shutdown();
+
+        Session replayed = sessions(new LocalSessionStore(directory, json)).getSession(hello());
+        assertEquals(factCount, replayed.getFactCount());
+        assertEquals(processCount, replayed.getProcessCount());
+
+    }
+
+    private Sessions sessions(SessionStore store) {
+        return new Sessions(new ClasspathRepository(),
+                new Profiles() {},
+                store,
+                Guice.createInjector(),
+                executor,
+                executor);
+    }
+
+    private Command hello() {
+        return new Insert().withObjects(json.createArrayNode().add(json.createObjectNode()
+                .putPOJO("ws.salient.examples.chat.Message",
+                        new Message("hi", Message.Intent.HELLO))))
+                .withAccountId("account")
+                .withSessionId("session")
+                .withKnowledgeBaseId("ws.salient:salient:1.0.0:ws.salient.examples.chat")
+                .withProfile("default");
+    }
+
+    private void finish() throws InterruptedException {
+        while (executor.getActiveCount() + executor.getQueue().size() > 0) {
+            Thread.sleep(1000);
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.salient.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class LongHashSetTest {
+
+    @Test
+    public void addAndContains() {
+        LongHashSet set = new LongHashSet();
+        for (long id = 0; id < 10000; id += 3) {
+            assertTrue(set.add(id));
+        }
+        assertFalse(set.add(3L));
+        for (long id = 0; id < 10000; id++) {
+            assertEquals(id % 3 == 0, set.contains(id));
+        }
+        assertEquals(3334, set.size());
+    }
+
+    @Test
+    public void clear() {
+        LongHashSet set = new LongHashSet();
+        set.add(0L);
+        set.add(42L);
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(0L));
+        assertFalse(set.contains(42L));
+    }
+
+}
@@ -18,15 +18,25 @@ package ws.salient.session;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Guice;
+import com.google.inject.Injector;
+import java.time.Instant;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import org.junit.Before;
 import org.junit.Test;
 import ws.salient.account.Profiles;
 import ws.salient.examples.chat.Message;
 import ws.salient.knowledge.ClasspathRepository;
+import ws.salient.knowledge.KnowledgeRepository;
 import ws.salient.model.Command;
 import ws.salient.model.commands.Insert;
 
@@ -67,6 +77,94 @@ public class SessionsTest {
 
     }
 
+    @Test
+    public void skipRedeliveredCommands() throws Exception {
+
+        List<String> stored = new CopyOnWriteArrayList();
+        Sessions sessions = new Sessions(new ClasspathRepository(),
+                new Profiles() {},
+                new SessionStore() {
+                    @Override
+                    public void put(Session session, Command command, int requestIndex) {
+                        stored.add(command.getSequenceNumber());
+                    }
+                },
+                Guice.createInjector(),
+                executor,
+                executor);
+        sessions.execute(Arrays.asList(hello().withSequenceNumber("shard", "1")));
+        // Record 1 is redelivered with record 2
+        sessions.execute(Arrays.asList(hello().withSequenceNumber("shard", "1"), hello().withSequenceNumber("shard", "2")));
+        finish();
+
+        assertEquals(Arrays.asList("1", "2"), stored);
+        assertEquals(Long.valueOf(2), sessions.getSession(hello()).getFactCount().get("Message"));
+
+    }
+
+    @Test
+    public void skipDuplicateReplayedEvents() throws Exception {
+
+        Command command = hello().withSequenceNumber("shard", "1").withTimestamp(Instant.now());
+        Session session = sessions.getSession(command);
+        session.accept(command);
+
+        session.setReplaying(true);
+        session.accept(hello().withSequenceNumber("shard", "1").withTimestamp(Instant.now()));
+        session.accept(hello().withSequenceNumber("shard", "2").withTimestamp(Instant.now()));
+        session.setReplaying(false);
+
+        assertEquals(Long.valueOf(2), session.getFactCount().get("Message"));
+
+    }
+
+    @Test
+    public void concurrentLoadKeepsOneSession() throws Exception {
+
+        // Both loads finish together, only one instance may be cached and returned
+        CyclicBarrier loaded = new CyclicBarrier(2);
+        Sessions sessions = new Sessions(new ClasspathRepository(),
+                new Profiles() {},
+                new SessionStore() {
+                    @Override
+                    public Session get(Command command, KnowledgeRepository repository, Properties properties, Injector parentInjector, Sessions sessions) {
+                        Session session = SessionStore.super.get(command, repository, properties, parentInjector, sessions);
+                        try {
+                            loaded.await();
+                        } catch (Exception ex) {
+                            throw new RuntimeException(ex);
+                        }
+                        return session;
+                    }
+                },
+                Guice.createInjector(),
+                executor,
+                executor);
+        Command command = new Insert().withObjects(json.createArrayNode())
+                .withAccountId("account")
+                .withSessionId("session")
+                .withKnowledgeBaseId("ws.salient:salient:1.0.0:ws.salient.examples.chat")
+                .withProfile("default")
+                .withTimestamp(Instant.now());
+
+        ExecutorService loads = Executors.newFixedThreadPool(2);
+        CompletableFuture<Session> first = CompletableFuture.supplyAsync(() -> sessions.getSession(command), loads);
+        CompletableFuture<Session> second = CompletableFuture.supplyAsync(() -> sessions.getSession(command), loads);
+        assertSame(first.get(), second.get());
+        assertSame(first.get(), sessions.getSessions().get("session"));
+
+    }
+
+    private Command hello() {
+        return new Insert().withObjects(json.createArrayNode().add(json.createObjectNode()
+                .putPOJO("ws.salient.examples.chat.Message",
+                        new Message("hi", Message.Intent.HELLO))))
+                .withAccountId("account")
+                .withSessionId("session")
+                .withKnowledgeBaseId("ws.salient:salient:1.0.0:ws.salient.examples.chat")
+                .withProfile("default");
+    }
+
     private void finish() throws InterruptedException {
         while (executor.getActiveCount() + executor.getQueue().size() > 0) {
             Thread.sleep(1000);